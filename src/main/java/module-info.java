@@ -2,6 +2,7 @@ module hellofx {
     requires javafx.controls;
     requires javafx.fxml;
     requires transitive javafx.graphics;
+    requires java.desktop;
     requires org.json;
     
     opens org.main.paint to javafx.fxml;
@@ -29,6 +29,20 @@ public abstract class Brush {
     public Color getColor() {
         return color;
     }
+
+    // Maps the names shown in the brush type combo box to brush instances
+    public static Brush create(String type, double size, Color color) {
+        switch (type) {
+            case "Circle":    return new CircleBrush(size, color);
+            case "Square":    return new SquareBrush(size, color);
+            case "Spray":     return new SprayBrush(size, color);
+            case "Line":      return new LineBrush(size, color);
+            case "Triangle":  return new TriangleBrush(size, color);
+            case "Star":      return new StarBrush(size, color);
+            case "Pencil":
+            default:          return new PencilBrush(size, color);
+        }
+    }
     
     public static class CircleBrush extends Brush {
         public CircleBrush(double size, Color color) {
@@ -75,6 +89,17 @@ public abstract class Brush {
             lastY = y;
         }
         
+        // Draws one smoothed segment produced by StrokeSmoother
+        public void drawCurve(GraphicsContext gc, double x0, double y0, double c1x, double c1y,
+                              double c2x, double c2y, double x1, double y1) {
+            gc.setStroke(color);
+            gc.setLineWidth(size);
+            gc.beginPath();
+            gc.moveTo(x0, y0);
+            gc.bezierCurveTo(c1x, c1y, c2x, c2y, x1, y1);
+            gc.stroke();
+        }
+        
         public void resetLastPosition() {
             lastX = -1;
             lastY = -1;
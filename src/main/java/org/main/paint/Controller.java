@@ -1,29 +1,54 @@
 package org.main.paint;
 
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
 import javafx.fxml.FXML;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.SnapshotParameters;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
 import javafx.scene.image.WritableImage;
+import javafx.scene.input.Clipboard;
+import javafx.scene.input.ClipboardContent;
+import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.StackPane;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
+import javafx.stage.FileChooser;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 
 public class Controller {
+    // Maximum distance in pixels a simplified pencil stroke may deviate from the raw samples; a wider
+    // line hides more deviation, so the tolerance grows with the brush size
+    private static final double MIN_STROKE_TOLERANCE = 0.75;
+    private static final double STROKE_TOLERANCE_PER_PIXEL = 0.1;
+    // A remote stroke that sends nothing for this long is treated as ended, e.g. when its peer went away
+    private static final long REMOTE_STROKE_TIMEOUT_NANOS = 2_000_000_000L;
+
     @FXML private Canvas canvas;
+    @FXML private Canvas backgroundCanvas;
+    @FXML private Canvas overlayCanvas;
     @FXML private ComboBox<String> brushTypeComboBox;
     @FXML private Slider brushSizeSlider;
     @FXML private ColorPicker colorPicker;
     @FXML private Label coordinatesLabel;
+    @FXML private Label snapshotStatsLabel;
     @FXML private Button undoButton;
     @FXML private Button redoButton;
+    @FXML private Button clearButton;
     @FXML private StackPane canvasContainer;
     @FXML private HBox textControlsBox;
     @FXML private TextField textInput;
@@ -32,29 +57,104 @@ public class Controller {
     @FXML private CheckBox boldCheckBox;
     @FXML private CheckBox italicCheckBox;
     @FXML private CheckBox textModeCheckBox;
+    @FXML private TextField sessionAddressField;
+    @FXML private Button hostSessionButton;
+    @FXML private Button joinSessionButton;
+    @FXML private Button leaveSessionButton;
+    @FXML private Label sessionStatusLabel;
 
     private GraphicsContext gc;
+    private GraphicsContext overlay;
+    private ImageTileSource backgroundImage;
+    private final SnapshotParameters snapshotParams = new SnapshotParameters();
     private Color currentColor = Color.BLACK;
     private Brush currentBrush;
+    private StrokeSmoother strokeSmoother;
     private boolean textMode = false;
     private List<TextBox> textBoxes = new ArrayList<>();
     private TextBox activeTextBox = null;
     private TextBox selectedTextBox = null;
     private double dragStartX, dragStartY;
     private boolean isDraggingTextBox = false;
-    private Stack<Image> undoStack = new Stack<>();
-    private Stack<Image> redoStack = new Stack<>();
+    private RasterHistory history;
+    private SnapshotCompactor snapshots;
+    // Newest snapshot whose patch hasn't reached the history yet; repaints draw from it meanwhile
+    private WritableImage pendingBase;
+    private int pendingSnapshots = 0;
+    // Snapshots requested but not taken yet; until then only the canvas holds the latest pixels
+    private int untakenSnapshots = 0;
+    // Area of the repaints held back while that is the case
+    private Rectangle2D deferredRepaint;
+    // History commands issued while snapshots are in flight, run once the last one has landed
+    private final ArrayDeque<Runnable> afterSnapshots = new ArrayDeque<>();
+    private boolean runningAfterSnapshots = false;
+    private RasterSelection selection;
+    private boolean isMarqueeSelecting = false;
+    private int pendingSelectionEdits = 0;
+    private PendingLift pendingLift;
+    private boolean isDraggingSelection = false;
+    private int marqueeX, marqueeY, marqueeWidth, marqueeHeight;
+    private double lastMouseX, lastMouseY;
     private Stack<List<TextBox>> textBoxUndoStack = new Stack<>();
     private Stack<List<TextBox>> textBoxRedoStack = new Stack<>();
     private boolean isDrawing = false;
+    private SessionRelay sessionRelay;
+    private SessionPeer session;
+    private boolean sessionConnected = false;
+    private AnimationTimer sessionTimer;
+    private TextBoxSync textSync;
+    private final Map<Long, Brush> remoteStrokes = new HashMap<>();
+    private final Map<Long, StrokeSmoother> remoteSmoothers = new HashMap<>();
+    private final Map<Long, Long> remoteStrokeSeen = new HashMap<>();
+
+    // A marquee released while snapshots are in flight; it can be dragged before its pixels are lifted
+    private static class PendingLift {
+        final int x, y, width, height;
+        double dx, dy;
+
+        PendingLift(int x, int y, int width, int height) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        boolean contains(double px, double py) {
+            return px >= x + dx && px < x + dx + width && py >= y + dy && py < y + dy + height;
+        }
+    }
 
     @FXML
     public void initialize() {
         gc = canvas.getGraphicsContext2D();
+        overlay = overlayCanvas.getGraphicsContext2D();
+        // Strokes and text live on a transparent canvas above the imported image
+        snapshotParams.setFill(Color.TRANSPARENT);
+        // Pencil strokes are simplified before they are drawn or sent to a session
+        strokeSmoother = new StrokeSmoother(MIN_STROKE_TOLERANCE, new StrokeSmoother.Listener() {
+            @Override
+            public void onVertex(double x, double y) {
+                if (session != null) session.addPoint(x, y);
+            }
+
+            @Override
+            public void onCurve(double x0, double y0, double c1x, double c1y, double c2x, double c2y, double x1, double y1) {
+                ((Brush.PencilBrush) currentBrush).drawCurve(gc, x0, y0, c1x, c1y, c2x, c2y, x1, y1);
+            }
+
+            @Override
+            public void onTail(double[] points, int count) {
+                drawOverlay();
+                if (count > 1) drawStrokeTail(points, count);
+            }
+        });
+        history = new RasterHistory((int) canvas.getWidth(), (int) canvas.getHeight());
+        snapshots = new SnapshotCompactor(history.getWidth(), history.getHeight());
+        history.setWriteListener(snapshots::written);
+        clearBackground();
         clearCanvas();
-        saveBrushState();         // initial brush snapshot
         saveTextState();          // initial empty text snapshot
-        brushTypeComboBox.getItems().addAll("Circle","Square","Pencil","Spray","Line","Triangle","Star");
+        brushTypeComboBox.getItems().addAll("Circle","Square","Pencil","Spray","Line","Triangle","Star","Select");
         brushTypeComboBox.setValue("Pencil");
         colorPicker.setValue(currentColor);
         colorPicker.setOnAction(e -> {
@@ -89,6 +189,10 @@ public class Controller {
     }
 
     private void handleKeyPressed(KeyEvent event) {
+        if (isSelectMode()) {
+            whenSelectionSettled(() -> handleSelectionKey(event));
+            return;
+        }
         if (selectedTextBox != null && (event.getCode().toString().equals("DELETE") ||
                                         event.getCode().toString().equals("BACK_SPACE"))) {
             if (selectedTextBox.isEditing()) {
@@ -163,17 +267,10 @@ public class Controller {
 
     private void updateBrush() {
         double size = brushSizeSlider.getValue();
-        if (textMode) currentBrush = null;
-        else switch (brushTypeComboBox.getValue()) {
-            case "Circle":    currentBrush = new Brush.CircleBrush(size, currentColor); break;
-            case "Square":    currentBrush = new Brush.SquareBrush(size, currentColor); break;
-            case "Spray":     currentBrush = new Brush.SprayBrush(size, currentColor); break;
-            case "Line":      currentBrush = new Brush.LineBrush(size, currentColor); break;
-            case "Triangle":  currentBrush = new Brush.TriangleBrush(size, currentColor); break;
-            case "Star":      currentBrush = new Brush.StarBrush(size, currentColor); break;
-            case "Pencil":
-            default:          currentBrush = new Brush.PencilBrush(size, currentColor); break;
-        }
+        if (!isSelectMode()) whenHistorySettled(this::commitSelection);
+        if (textMode || isSelectMode()) currentBrush = null;
+        else currentBrush = Brush.create(brushTypeComboBox.getValue(), size, currentColor);
+        strokeSmoother.setTolerance(Math.max(MIN_STROKE_TOLERANCE, size * STROKE_TOLERANCE_PER_PIXEL));
     }
 
     private void handleMouseClicked(MouseEvent event) {
@@ -195,10 +292,35 @@ public class Controller {
                 if (selectedTextBox != clickedBox) selectTextBox(clickedBox);
                 dragStartX = event.getX(); dragStartY = event.getY(); isDraggingTextBox = true;
             } else deselectTextBox();
+        } else if (isSelectMode()) {
+            canvas.requestFocus();
+            dragStartX = event.getX(); dragStartY = event.getY();
+            // Dragging and the marquee only touch the overlay, so they never wait for snapshots. A marquee
+            // whose lift is still queued is dragged by offsetting the lift; a selection that other queued
+            // edits are about to change can't be dragged, so pressing on it starts a new marquee.
+            boolean onSelection = pendingLift != null ? pendingLift.contains(event.getX(), event.getY())
+                    : selection != null && pendingSelectionEdits == 0 && selection.contains(event.getX(), event.getY());
+            if (onSelection) {
+                isDraggingSelection = true;
+            } else {
+                pendingLift = null;
+                whenSelectionSettled(this::commitSelection);
+                isMarqueeSelecting = true;
+                marqueeX = marqueeY = marqueeWidth = marqueeHeight = 0;
+            }
         } else {
             isDrawing = true;
             if (currentBrush != null) {
-                currentBrush.draw(gc, event.getX(), event.getY());
+                if (session != null) {
+                    session.beginStroke(brushTypeComboBox.getValue(), currentBrush.getSize(),
+                                        SessionProtocol.toArgb(currentColor));
+                }
+                if (currentBrush instanceof Brush.PencilBrush) {
+                    strokeSmoother.begin(event.getX(), event.getY());
+                } else {
+                    currentBrush.draw(gc, event.getX(), event.getY());
+                    if (session != null) session.addPoint(event.getX(), event.getY());
+                }
             }
         }
     }
@@ -213,8 +335,23 @@ public class Controller {
                 dragStartX = event.getX(); dragStartY = event.getY();
                 redrawCanvas();
             }
+        } else if (isSelectMode()) {
+            if (isDraggingSelection && pendingLift != null) {
+                pendingLift.dx += event.getX() - dragStartX;
+                pendingLift.dy += event.getY() - dragStartY;
+                dragStartX = event.getX(); dragStartY = event.getY();
+                drawOverlay();
+            } else if (isDraggingSelection && selection != null) {
+                moveSelection(event.getX() - dragStartX, event.getY() - dragStartY);
+                dragStartX = event.getX(); dragStartY = event.getY();
+            } else if (isMarqueeSelecting) updateMarquee(event.getX(), event.getY());
         } else {
-            if (isDrawing && currentBrush != null) currentBrush.draw(gc, event.getX(), event.getY());
+            if (isDrawing && currentBrush instanceof Brush.PencilBrush) {
+                strokeSmoother.add(event.getX(), event.getY());
+            } else if (isDrawing && currentBrush != null) {
+                currentBrush.draw(gc, event.getX(), event.getY());
+                if (session != null) session.addPoint(event.getX(), event.getY());
+            }
         }
     }
 
@@ -224,8 +361,22 @@ public class Controller {
             if (selectedTextBox != null && !selectedTextBox.isEditing()) {
                 saveTextState();  // after move
             }
+        } else if (isSelectMode()) {
+            if (isMarqueeSelecting) {
+                isMarqueeSelecting = false;
+                PendingLift lift = new PendingLift(marqueeX, marqueeY, marqueeWidth, marqueeHeight);
+                pendingLift = lift;
+                whenSelectionSettled(() -> {
+                    if (pendingLift == lift) pendingLift = null;
+                    liftSelection(lift.x, lift.y, lift.width, lift.height);
+                    if (selection != null && (lift.dx != 0 || lift.dy != 0)) moveSelection(lift.dx, lift.dy);
+                });
+            }
+            isDraggingSelection = false;
         } else if (isDrawing) {
             isDrawing = false;
+            if (currentBrush instanceof Brush.PencilBrush) strokeSmoother.end();
+            if (session != null) session.endStroke();
             if (currentBrush instanceof Brush.PencilBrush)
                 ((Brush.PencilBrush) currentBrush).resetLastPosition();
                 saveBrushState();
@@ -234,9 +385,13 @@ public class Controller {
 
     private void handleMouseMoved(MouseEvent event) {
         coordinatesLabel.setText(String.format("Coordinates: %.0f, %.0f", event.getX(), event.getY()));
+        lastMouseX = event.getX(); lastMouseY = event.getY();
         if (textMode) {
             TextBox hoveredBox = findTextBoxAt(event.getX(), event.getY());
             canvas.setCursor(hoveredBox != null ? javafx.scene.Cursor.HAND : javafx.scene.Cursor.TEXT);
+        } else if (isSelectMode()) {
+            boolean overSelection = selection != null && selection.contains(event.getX(), event.getY());
+            canvas.setCursor(overSelection ? javafx.scene.Cursor.MOVE : javafx.scene.Cursor.CROSSHAIR);
         } else canvas.setCursor(javafx.scene.Cursor.DEFAULT);
     }
 
@@ -313,56 +468,224 @@ public class Controller {
     }
 
     private void redrawCanvas() {
-        gc.setFill(Color.WHITE);
-        gc.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
-        if (!undoStack.isEmpty()) {
-            gc.drawImage(undoStack.peek(), 0, 0);
+        repaintRegion(0, 0, canvas.getWidth(), canvas.getHeight());
+        drawOverlay();
+    }
+
+    // Redraws the marquee, the floating selection and the text box outline and caret above the canvas
+    private void drawOverlay() {
+        overlay.clearRect(0, 0, overlayCanvas.getWidth(), overlayCanvas.getHeight());
+        if (isMarqueeSelecting) drawSelectionOutline(marqueeX, marqueeY, marqueeWidth, marqueeHeight);
+        if (pendingLift != null) {
+            drawSelectionOutline(pendingLift.x + pendingLift.dx, pendingLift.y + pendingLift.dy,
+                                 pendingLift.width, pendingLift.height);
+        }
+        if (selection != null) {
+            int w = selection.getWidth(), h = selection.getHeight();
+            overlay.drawImage(selection.getSource(), selection.getSourceX(), selection.getSourceY(), w, h,
+                              selection.getX(), selection.getY(), w, h);
+            drawSelectionOutline(selection.getX(), selection.getY(), w, h);
+        }
+        if (selectedTextBox != null && textBoxes.contains(selectedTextBox)) drawTextBoxOutline(selectedTextBox);
+    }
+
+    // Restores one region from the committed raster without touching the rest of the canvas
+    private void repaintRegion(double x, double y, double width, double height) {
+        if (!canRepaint()) {
+            deferRepaint(x, y, width, height);
+            return;
+        }
+        int x0 = (int) Math.max(0, Math.floor(x)), y0 = (int) Math.max(0, Math.floor(y));
+        int x1 = (int) Math.min(history.getWidth(), Math.ceil(x + width));
+        int y1 = (int) Math.min(history.getHeight(), Math.ceil(y + height));
+        if (x1 <= x0 || y1 <= y0) return;
+        gc.save();
+        gc.beginPath();
+        gc.rect(x0, y0, x1 - x0, y1 - y0);
+        gc.clip();
+        gc.clearRect(x0, y0, x1 - x0, y1 - y0);
+        Image base = pendingBase != null ? pendingBase : history.getImage();
+        gc.drawImage(base, x0, y0, x1 - x0, y1 - y0, x0, y0, x1 - x0, y1 - y0);
+        if (selection != null && selection.isLifted()) {
+            gc.clearRect(selection.getSourceX(), selection.getSourceY(), selection.getWidth(), selection.getHeight());
         }
         for (TextBox box : textBoxes) {
             drawTextBox(box);
         }
+        gc.restore();
+    }
+
+    // Repainting draws from the committed raster, which lacks strokes still being drawn and pixels an
+    // untaken snapshot is meant to capture
+    private boolean canRepaint() {
+        return untakenSnapshots == 0 && !isDrawing && remoteStrokes.isEmpty();
+    }
+
+    private void deferRepaint(double x, double y, double width, double height) {
+        double x0 = x, y0 = y, x1 = x + Math.max(0, width), y1 = y + Math.max(0, height);
+        if (deferredRepaint != null) {
+            x0 = Math.min(x0, deferredRepaint.getMinX());
+            y0 = Math.min(y0, deferredRepaint.getMinY());
+            x1 = Math.max(x1, deferredRepaint.getMaxX());
+            y1 = Math.max(y1, deferredRepaint.getMaxY());
+        }
+        deferredRepaint = new Rectangle2D(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    private void flushDeferredRepaint() {
+        if (deferredRepaint == null || !canRepaint()) return;
+        Rectangle2D area = deferredRepaint;
+        deferredRepaint = null;
+        repaintRegion(area.getMinX(), area.getMinY(), area.getWidth(), area.getHeight());
     }
 
     private void drawTextBox(TextBox box) {
         gc.setFill(box.getColor());
         gc.setFont(box.getFont());
         gc.fillText(box.getText(), box.getX(), box.getBaselineY());
-        if (box == selectedTextBox) {
-            double width = box.getWidth();
-            double height = box.getFontSize();
-            gc.setStroke(Color.BLUE);
-            gc.setLineDashes(2);
-            gc.strokeRect(box.getX() - 2, box.getTopY() - 2, width + 4, height + 4);
-            gc.setLineDashes(null);
-            if (box.isEditing()) {
-                double cursorX = box.getX() + box.getWidth();
-                gc.setStroke(Color.BLACK);
-                gc.strokeLine(cursorX, box.getTopY(), cursorX, box.getBaselineY());
-            }
+    }
+
+    private void drawTextBoxOutline(TextBox box) {
+        double width = box.getWidth();
+        double height = box.getFontSize();
+        overlay.setStroke(Color.BLUE);
+        overlay.setLineWidth(1);
+        overlay.setLineDashes(2);
+        overlay.strokeRect(box.getX() - 2, box.getTopY() - 2, width + 4, height + 4);
+        overlay.setLineDashes(null);
+        if (box.isEditing()) {
+            double cursorX = box.getX() + box.getWidth();
+            overlay.setStroke(Color.BLACK);
+            overlay.strokeLine(cursorX, box.getTopY(), cursorX, box.getBaselineY());
         }
     }
 
     @FXML private void handleClearCanvas() {
-        saveBrushState();    // clear canvas undo
+        // Clearing isn't sent to peers, so it is disabled while connected
+        if (session != null) return;
+        selection = null;
         clearCanvas();
+        saveBrushState();    // clear canvas undo
         saveTextState();     // clear text undo
         textBoxes.clear();
         activeTextBox = null;
         selectedTextBox = null;
+        drawOverlay();
         updateUndoRedoButtons();
     }
 
     private void clearCanvas() {
-        gc.setFill(Color.WHITE);
-        gc.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        gc.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+    }
+
+    private void clearBackground() {
+        GraphicsContext bg = backgroundCanvas.getGraphicsContext2D();
+        bg.setFill(Color.WHITE);
+        bg.fillRect(0, 0, backgroundCanvas.getWidth(), backgroundCanvas.getHeight());
+    }
+
+    @FXML private void handleImportImage() {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Import Image");
+        chooser.getExtensionFilters().add(
+                new FileChooser.ExtensionFilter("Images", "*.png", "*.jpg", "*.jpeg", "*.bmp", "*.gif"));
+        File file = chooser.showOpenDialog(canvas.getScene().getWindow());
+        if (file == null) return;
+        // Opening reads the image header, which can stall on large files, so keep it off the FX thread
+        Task<ImageTileSource> open = new Task<>() {
+            @Override
+            protected ImageTileSource call() throws IOException {
+                return ImageTileSource.open(file);
+            }
+        };
+        open.setOnSucceeded(e -> {
+            if (backgroundImage != null) backgroundImage.close();
+            backgroundImage = open.getValue();
+            drawBackgroundImage();
+        });
+        open.setOnFailed(e -> new Alert(Alert.AlertType.ERROR,
+                "Could not import image: " + open.getException().getMessage()).show());
+        Thread thread = new Thread(open, "image-import");
+        thread.setDaemon(true);
+        thread.start();
     }
 
+    // Fits the image to the canvas and draws it tile by tile as tiles finish decoding
+    private void drawBackgroundImage() {
+        ImageTileSource source = backgroundImage;
+        double scale = Math.min(1.0, Math.min(backgroundCanvas.getWidth() / source.getWidth(),
+                                              backgroundCanvas.getHeight() / source.getHeight()));
+        clearBackground();
+        GraphicsContext bg = backgroundCanvas.getGraphicsContext2D();
+        source.requestViewport(0, 0, source.getWidth(), source.getHeight(), scale, tile -> {
+            if (source != backgroundImage) return;
+            bg.drawImage(tile.image, tile.sourceX * scale, tile.sourceY * scale,
+                         tile.sourceWidth * scale, tile.sourceHeight * scale);
+        });
+    }
+
+    // Snapshots the canvas on the next pulse into a pooled buffer; the diff runs on the compactor thread
     private void saveBrushState() {
-        WritableImage snap = new WritableImage((int)canvas.getWidth(), (int)canvas.getHeight());
-        canvas.snapshot(null, snap);
-        undoStack.push(snap);
-        redoStack.clear();
+        WritableImage buffer = snapshots.acquire();
+        long requested = System.nanoTime();
+        pendingSnapshots++;
+        untakenSnapshots++;
         updateUndoRedoButtons();
+        canvas.snapshot(result -> {
+            snapshots.recordTaken(System.nanoTime() - requested);
+            pendingBase = buffer;
+            untakenSnapshots--;
+            flushDeferredRepaint();
+            snapshots.compact(buffer, patch -> landSnapshot(buffer, patch, requested));
+            return null;
+        }, snapshotParams, buffer);
+    }
+
+    private void landSnapshot(WritableImage buffer, RasterHistory.Patch patch, long requested) {
+        if (patch != null) history.apply(patch);
+        if (pendingBase == buffer) pendingBase = null;
+        snapshots.release(buffer);
+        snapshots.recordLanded(System.nanoTime() - requested);
+        snapshotStatsLabel.setText(snapshots.describe());
+        pendingSnapshots--;
+        updateUndoRedoButtons();
+        runAfterSnapshots();
+    }
+
+    // True once every snapshot has reached the history and no deferred command is waiting
+    boolean isHistorySettled() {
+        return pendingSnapshots == 0 && afterSnapshots.isEmpty();
+    }
+
+    private boolean mustWaitForSnapshots() {
+        return pendingSnapshots > 0 || (!afterSnapshots.isEmpty() && !runningAfterSnapshots);
+    }
+
+    // Runs a command that reads or rewrites the history once in-flight snapshots have landed
+    private void whenHistorySettled(Runnable command) {
+        if (mustWaitForSnapshots()) afterSnapshots.add(command);
+        else command.run();
+    }
+
+    // Selection edits commit or lift pixels, so they wait like other history commands; counted so a
+    // press doesn't start dragging a selection that a queued edit is about to replace
+    private void whenSelectionSettled(Runnable edit) {
+        pendingSelectionEdits++;
+        whenHistorySettled(() -> {
+            pendingSelectionEdits--;
+            edit.run();
+        });
+    }
+
+    private void runAfterSnapshots() {
+        while (pendingSnapshots == 0 && !afterSnapshots.isEmpty()) {
+            runningAfterSnapshots = true;
+            try {
+                afterSnapshots.poll().run();
+            } finally {
+                runningAfterSnapshots = false;
+            }
+        }
     }
 
     private void saveTextState() {
@@ -377,23 +700,17 @@ public class Controller {
                 textBoxRedoStack.push(textBoxUndoStack.pop());
                 List<TextBox> prev = textBoxUndoStack.peek();
                 textBoxes.clear();
-                if (prev!=null) prev.forEach(b->
-                    textBoxes.add(new TextBox(b.getText(),b.getX(),b.getY(),
-                                              b.getColor(),b.getFontFamily(),
-                                              b.getFontSize(),b.isBold(),b.isItalic()))
-                );
+                if (prev!=null) prev.forEach(b->textBoxes.add(b.copy()));
                 activeTextBox = selectedTextBox = null;
                 redrawCanvas();
             }
         } else {
-            if (undoStack.size() > 1) {
-                redoStack.push(undoStack.pop());
-                Image img = undoStack.peek();
-                gc.setFill(Color.WHITE);
-                gc.fillRect(0,0,canvas.getWidth(),canvas.getHeight());
-                gc.drawImage(img,0,0);
-                redrawCanvas();
-            }
+            whenHistorySettled(() -> {
+                // Undo drops a floating selection before it touches the history
+                if (selection != null) cancelSelection();
+                else if (session == null && history.undo()) redrawCanvas();
+                updateUndoRedoButtons();
+            });
         }
         updateUndoRedoButtons();
     }
@@ -404,23 +721,16 @@ public class Controller {
                 textBoxUndoStack.push(textBoxRedoStack.pop());
                 List<TextBox> next = textBoxUndoStack.peek();
                 textBoxes.clear();
-                if (next!=null) next.forEach(b->
-                    textBoxes.add(new TextBox(b.getText(),b.getX(),b.getY(),
-                                              b.getColor(),b.getFontFamily(),
-                                              b.getFontSize(),b.isBold(),b.isItalic()))
-                );
+                if (next!=null) next.forEach(b->textBoxes.add(b.copy()));
                 activeTextBox = selectedTextBox = null;
                 redrawCanvas();
             }
         } else {
-            if (!redoStack.isEmpty()) {
-                undoStack.push(redoStack.pop());
-                Image img = undoStack.peek();
-                gc.setFill(Color.WHITE);
-                gc.fillRect(0,0,canvas.getWidth(),canvas.getHeight());
-                gc.drawImage(img,0,0);
-                redrawCanvas();
-            }
+            whenHistorySettled(() -> {
+                cancelSelection();
+                if (session == null && history.redo()) redrawCanvas();
+                updateUndoRedoButtons();
+            });
         }
         updateUndoRedoButtons();
     }
@@ -430,8 +740,322 @@ public class Controller {
             undoButton.setDisable(textBoxUndoStack.size() <= 1);
             redoButton.setDisable(textBoxRedoStack.isEmpty());
         } else {
-            undoButton.setDisable(undoStack.size() <= 1);
-            redoButton.setDisable(redoStack.isEmpty());
+            // A stroke whose snapshot is still in flight is undoable; the undo waits for it. Raster undo
+            // isn't sent to peers, so while connected only a floating selection can be dropped.
+            boolean rasterUndo = session == null && (history.canUndo() || pendingSnapshots > 0);
+            undoButton.setDisable(selection == null && !rasterUndo);
+            redoButton.setDisable(session != null || !history.canRedo());
+        }
+    }
+
+    private boolean isSelectMode() {
+        return !textMode && "Select".equals(brushTypeComboBox.getValue());
+    }
+
+    private void handleSelectionKey(KeyEvent event) {
+        KeyCode code = event.getCode();
+        if (event.isShortcutDown() && code == KeyCode.C) copySelection();
+        else if (event.isShortcutDown() && code == KeyCode.X) { copySelection(); eraseSelection(); }
+        else if (event.isShortcutDown() && code == KeyCode.V) pasteSelection();
+        else if (code == KeyCode.DELETE || code == KeyCode.BACK_SPACE) eraseSelection();
+        else if (code == KeyCode.ESCAPE) cancelSelection();
+        else if (code == KeyCode.ENTER) commitSelection();
+    }
+
+    private void updateMarquee(double x, double y) {
+        int x0 = (int) Math.max(0, Math.floor(Math.min(dragStartX, x)));
+        int y0 = (int) Math.max(0, Math.floor(Math.min(dragStartY, y)));
+        int x1 = (int) Math.min(history.getWidth(), Math.ceil(Math.max(dragStartX, x)));
+        int y1 = (int) Math.min(history.getHeight(), Math.ceil(Math.max(dragStartY, y)));
+        marqueeX = x0; marqueeY = y0;
+        marqueeWidth = Math.max(0, x1 - x0); marqueeHeight = Math.max(0, y1 - y0);
+        drawOverlay();
+    }
+
+    // Floats a region's pixels above the canvas; they share the committed raster until it changes
+    private void liftSelection(int x, int y, int width, int height) {
+        if (width >= 1 && height >= 1) {
+            selection = new RasterSelection(history.share(), x, y, width, height, true);
+            // Clears the lifted area on the canvas; the pixels now float on the overlay
+            repaintRegion(x, y, width, height);
+            updateUndoRedoButtons();
+        }
+        drawOverlay();
+    }
+
+    // The selection floats on the overlay, so moving it leaves the canvas untouched
+    private void moveSelection(double dx, double dy) {
+        selection.moveTo(selection.getX() + dx, selection.getY() + dy);
+        drawOverlay();
+    }
+
+    // The part of a pencil stroke the smoother hasn't turned into curves yet
+    private void drawStrokeTail(double[] points, int count) {
+        overlay.setStroke(currentBrush.getColor());
+        overlay.setLineWidth(currentBrush.getSize());
+        overlay.beginPath();
+        overlay.moveTo(points[0], points[1]);
+        for (int i = 1; i < count; i++) overlay.lineTo(points[i * 2], points[i * 2 + 1]);
+        overlay.stroke();
+    }
+
+    private void drawSelectionOutline(double x, double y, double width, double height) {
+        overlay.setStroke(Color.BLUE);
+        overlay.setLineWidth(1);
+        overlay.setLineDashes(4);
+        overlay.strokeRect(x - 0.5, y - 0.5, width + 1, height + 1);
+        overlay.setLineDashes(null);
+    }
+
+    // Writes the selection into the raster as a single undo step covering its old and new area
+    private void commitSelection() {
+        if (selection == null) return;
+        RasterSelection committed = selection;
+        selection = null;
+        int destX = (int) Math.round(committed.getX()), destY = (int) Math.round(committed.getY());
+        int x0 = destX, y0 = destY;
+        int x1 = destX + committed.getWidth(), y1 = destY + committed.getHeight();
+        if (committed.isLifted()) {
+            x0 = Math.min(x0, committed.getSourceX());
+            y0 = Math.min(y0, committed.getSourceY());
+            x1 = Math.max(x1, committed.getSourceX() + committed.getWidth());
+            y1 = Math.max(y1, committed.getSourceY() + committed.getHeight());
+        }
+        int repaintX = x0, repaintY = y0, repaintWidth = x1 - x0, repaintHeight = y1 - y0;
+        x0 = Math.max(0, x0); y0 = Math.max(0, y0);
+        x1 = Math.min(history.getWidth(), x1); y1 = Math.min(history.getHeight(), y1);
+        if (x1 > x0 && y1 > y0) {
+            int[] region = history.readRegion(x0, y0, x1 - x0, y1 - y0);
+            committed.compositeInto(region, x0, y0, x1 - x0, y1 - y0, destX, destY);
+            history.commitRegion(x0, y0, x1 - x0, y1 - y0, region);
+        }
+        repaintRegion(repaintX, repaintY, repaintWidth, repaintHeight);
+        drawOverlay();
+        updateUndoRedoButtons();
+    }
+
+    private void cancelSelection() {
+        if (selection == null) return;
+        selection = null;
+        redrawCanvas();
+        updateUndoRedoButtons();
+    }
+
+    // Clears the lifted pixels from the raster; a pasted selection is simply dropped
+    private void eraseSelection() {
+        if (selection == null) return;
+        RasterSelection erased = selection;
+        selection = null;
+        if (erased.isLifted()) {
+            history.commitRegion(erased.getSourceX(), erased.getSourceY(), erased.getWidth(), erased.getHeight(),
+                                 new int[erased.getWidth() * erased.getHeight()]);
+        }
+        redrawCanvas();
+        updateUndoRedoButtons();
+    }
+
+    private void copySelection() {
+        if (selection == null) return;
+        ClipboardContent content = new ClipboardContent();
+        content.putImage(selection.toImage());
+        Clipboard.getSystemClipboard().setContent(content);
+    }
+
+    private void pasteSelection() {
+        Clipboard clipboard = Clipboard.getSystemClipboard();
+        if (!clipboard.hasImage()) return;
+        commitSelection();
+        Image image = clipboard.getImage();
+        selection = new RasterSelection(image, 0, 0, (int) image.getWidth(), (int) image.getHeight(), false);
+        selection.moveTo(Math.round(lastMouseX), Math.round(lastMouseY));
+        drawOverlay();
+        updateUndoRedoButtons();
+    }
+
+    @FXML private void handleHostSession() {
+        try {
+            sessionRelay = new SessionRelay(parseSessionPort());
+            startSession("localhost", sessionRelay.getPort());
+        } catch (IOException e) {
+            sessionStatusLabel.setText("Could not host: " + e.getMessage());
+            closeSession();
+        }
+    }
+
+    @FXML private void handleJoinSession() {
+        String address = sessionAddressField.getText().trim();
+        String host = address.contains(":") ? address.substring(0, address.lastIndexOf(':')) : address;
+        try {
+            startSession(host.isEmpty() ? "localhost" : host, parseSessionPort());
+        } catch (IOException e) {
+            sessionStatusLabel.setText("Could not join: " + e.getMessage());
+            closeSession();
+        }
+    }
+
+    @FXML private void handleLeaveSession() {
+        closeSession();
+        sessionStatusLabel.setText("Not connected");
+    }
+
+    private int parseSessionPort() {
+        String address = sessionAddressField.getText().trim();
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) return SessionRelay.DEFAULT_PORT;
+        try {
+            return Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return SessionRelay.DEFAULT_PORT;
+        }
+    }
+
+    private void startSession(String host, int port) throws IOException {
+        // Connects in the background; until then flushed deltas wait in the peer
+        session = new SessionPeer(host, port, new SessionPeer.Listener() {
+            @Override
+            public void onDeltas(List<Object> deltas) {
+                Platform.runLater(() -> applyRemoteDeltas(deltas));
+            }
+
+            @Override
+            public void onConnected() {
+                Platform.runLater(() -> handleSessionConnected(host + ":" + port));
+            }
+
+            @Override
+            public void onDisconnected(String reason) {
+                Platform.runLater(() -> handleSessionLost(reason));
+            }
+        });
+        sessionConnected = false;
+        textSync = new TextBoxSync(session);
+        textSync.adopt(textBoxes);
+        // Undoing a step from before the session could paint over peers' strokes
+        whenHistorySettled(this::forgetRasterSteps);
+        // Outgoing deltas are coalesced and sent once per rendered frame
+        sessionTimer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                textSync.publishChanges(textBoxes);
+                session.flush();
+                expireSilentRemoteStrokes();
+            }
+        };
+        sessionTimer.start();
+        sessionStatusLabel.setText("Connecting to " + host + ":" + port + "...");
+        updateSessionButtons();
+    }
+
+    private void handleSessionConnected(String address) {
+        if (session == null) return;
+        sessionConnected = true;
+        sessionStatusLabel.setText("Connected to " + address);
+    }
+
+    private void handleSessionLost(String reason) {
+        if (session == null) return;
+        boolean wasConnected = sessionConnected;
+        closeSession();
+        sessionStatusLabel.setText((wasConnected ? "Session lost: " : "Could not join: ") + reason);
+    }
+
+    private void closeSession() {
+        if (sessionTimer != null) sessionTimer.stop();
+        if (session != null) session.close();
+        if (sessionRelay != null) sessionRelay.close();
+        sessionTimer = null;
+        session = null;
+        textSync = null;
+        sessionConnected = false;
+        sessionRelay = null;
+        remoteStrokes.clear();
+        remoteSmoothers.clear();
+        remoteStrokeSeen.clear();
+        flushDeferredRepaint();
+        // Steps recorded during the session include peers' strokes, which aren't ours to undo
+        whenHistorySettled(this::forgetRasterSteps);
+        updateSessionButtons();
+    }
+
+    private void forgetRasterSteps() {
+        history.forgetSteps();
+        updateUndoRedoButtons();
+    }
+
+    private void updateSessionButtons() {
+        boolean connected = session != null;
+        hostSessionButton.setDisable(connected);
+        joinSessionButton.setDisable(connected);
+        leaveSessionButton.setDisable(!connected);
+        clearButton.setDisable(connected);
+        updateUndoRedoButtons();
+    }
+
+    private void applyRemoteDeltas(List<Object> deltas) {
+        if (session == null) return;
+        boolean textChanged = false;
+        for (Object delta : deltas) {
+            if (delta instanceof SessionProtocol.StrokeDelta) applyRemoteStroke((SessionProtocol.StrokeDelta) delta);
+            else textChanged |= textSync.applyRemote((SessionProtocol.TextDelta) delta, textBoxes);
+        }
+        if (!textBoxes.contains(activeTextBox)) activeTextBox = null;
+        if (!textBoxes.contains(selectedTextBox)) selectedTextBox = null;
+        // Held back while any stroke is open, since a repaint would erase its unsnapshotted pixels
+        if (textChanged) redrawCanvas();
+    }
+
+    private void applyRemoteStroke(SessionProtocol.StrokeDelta delta) {
+        long key = ((long) delta.siteId << 32) | delta.strokeId;
+        Brush brush = remoteStrokes.computeIfAbsent(key,
+                k -> Brush.create(delta.brushType, delta.size, SessionProtocol.fromArgb(delta.argb)));
+        if (brush instanceof Brush.PencilBrush) {
+            // Remote pencil points are already simplified, so only smooth them
+            Brush.PencilBrush pencil = (Brush.PencilBrush) brush;
+            StrokeSmoother smoother = remoteSmoothers.computeIfAbsent(key, k -> new StrokeSmoother(0,
+                    new StrokeSmoother.Listener() {
+                        @Override
+                        public void onVertex(double x, double y) {
+                        }
+
+                        @Override
+                        public void onCurve(double x0, double y0, double c1x, double c1y,
+                                            double c2x, double c2y, double x1, double y1) {
+                            pencil.drawCurve(gc, x0, y0, c1x, c1y, c2x, c2y, x1, y1);
+                        }
+                    }));
+            for (int i = 0; i < delta.pointCount(); i++) smoother.add(delta.x(i), delta.y(i));
+            if (delta.end) smoother.end();
+        } else {
+            for (int i = 0; i < delta.pointCount(); i++) brush.draw(gc, delta.x(i), delta.y(i));
+        }
+        if (delta.end) finishRemoteStroke(key);
+        else remoteStrokeSeen.put(key, System.nanoTime());
+    }
+
+    // Ends remote strokes whose peer stopped sending without an end delta, so repaints aren't held forever
+    private void expireSilentRemoteStrokes() {
+        if (remoteStrokeSeen.isEmpty()) return;
+        long now = System.nanoTime();
+        for (Long key : new ArrayList<>(remoteStrokeSeen.keySet())) {
+            if (now - remoteStrokeSeen.get(key) < REMOTE_STROKE_TIMEOUT_NANOS) continue;
+            StrokeSmoother smoother = remoteSmoothers.get(key);
+            if (smoother != null) smoother.end();
+            finishRemoteStroke(key);
         }
     }
+
+    private void finishRemoteStroke(long key) {
+        remoteStrokes.remove(key);
+        remoteSmoothers.remove(key);
+        remoteStrokeSeen.remove(key);
+        // Keep remote strokes in the raster so the next redrawCanvas doesn't wipe them. Overlays are
+        // on their own layer; a floating selection is committed first so its hole isn't snapshotted.
+        if (!isDrawing && selection == null) saveBrushState();
+        else if (!isDrawing) whenHistorySettled(() -> {
+            commitSelection();
+            saveBrushState();
+        });
+        // Repaints held back by this stroke run now, or once the snapshot it requested is taken
+        flushDeferredRepaint();
+    }
 }
@@ -0,0 +1,288 @@
+package org.main.paint;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Streams a large image from disk as tiles of a resolution pyramid.
+ * <p>
+ * Level {@code n} of the pyramid is the source averaged over {@code 2^n x 2^n} pixel boxes,
+ * so thin lines fade rather than vanish at coarse levels. Tiles are decoded on demand from a
+ * source region in bands of at most {@link #BAND_BYTES}, so the full-resolution raster is never
+ * held in memory; decoded tiles live in an LRU cache bounded by {@link #DEFAULT_CACHE_BYTES}.
+ * <p>
+ * Readers for sequential formats like PNG and JPEG decode from the start of the file on every
+ * read, so the tiles missing from one request come from a single read of their bounding region,
+ * cut into tiles afterwards. The level is picked for the viewport's scale, so that region is at
+ * most about twice the viewport's screen size in each direction once averaged. Averaging has to
+ * visit every source pixel of the region, so a coarse level takes one read per band.
+ */
+public class ImageTileSource implements AutoCloseable {
+    public static final int TILE_SIZE = 256;
+    public static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+    // Largest full-resolution band decoded at once while averaging a coarse level
+    public static final long BAND_BYTES = 32L * 1024 * 1024;
+
+    private final ImageInputStream stream;
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+    private final TileCache cache;
+    private final ExecutorService decoder = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "image-tile-decoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile int generation = 0;
+
+    public static class Tile {
+        public final int level;
+        public final int column;
+        public final int row;
+        public final Image image;
+        // Area covered in full-resolution source pixels
+        public final int sourceX, sourceY, sourceWidth, sourceHeight;
+
+        Tile(int level, int column, int row, Image image, Rectangle source) {
+            this.level = level;
+            this.column = column;
+            this.row = row;
+            this.image = image;
+            this.sourceX = source.x;
+            this.sourceY = source.y;
+            this.sourceWidth = source.width;
+            this.sourceHeight = source.height;
+        }
+
+        long bytes() {
+            return (long) image.getWidth() * (long) image.getHeight() * 4;
+        }
+    }
+
+    // Least recently used tiles are evicted once the decoded pixels exceed the byte budget
+    private static class TileCache extends LinkedHashMap<Long, Tile> {
+        private final long maxBytes;
+        private long bytes = 0;
+
+        TileCache(long maxBytes) {
+            super(64, 0.75f, true);
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized Tile find(long key) {
+            return get(key);
+        }
+
+        synchronized void add(long key, Tile tile) {
+            Tile previous = put(key, tile);
+            if (previous != null) bytes -= previous.bytes();
+            bytes += tile.bytes();
+            Iterator<Map.Entry<Long, Tile>> eldest = entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                Tile evicted = eldest.next().getValue();
+                if (evicted == tile) break;
+                bytes -= evicted.bytes();
+                eldest.remove();
+            }
+        }
+    }
+
+    private ImageTileSource(ImageInputStream stream, ImageReader reader, long cacheBytes) throws IOException {
+        this.stream = stream;
+        this.reader = reader;
+        this.width = reader.getWidth(0);
+        this.height = reader.getHeight(0);
+        this.cache = new TileCache(cacheBytes);
+    }
+
+    // Reads only the header; call off the FX thread since the file may be slow to open
+    public static ImageTileSource open(File file) throws IOException {
+        ImageInputStream stream = ImageIO.createImageInputStream(file);
+        if (stream == null) throw new IOException("Cannot read " + file.getName());
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+        if (!readers.hasNext()) {
+            stream.close();
+            throw new IOException("Unsupported image format: " + file.getName());
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(stream, true, true);
+        return new ImageTileSource(stream, reader, DEFAULT_CACHE_BYTES);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // Coarsest level that still has at least one source pixel per screen pixel at this scale
+    public int levelFor(double scale) {
+        int level = 0;
+        while (scale * (1 << (level + 1)) <= 1.0 && (width >> (level + 1)) > 0) level++;
+        return level;
+    }
+
+    /**
+     * Delivers every tile overlapping the given source-space viewport at the pyramid level that
+     * suits {@code scale}. Cached tiles are delivered immediately; the rest are decoded in the
+     * background and delivered on the FX thread. A newer request cancels tiles still queued for
+     * an older one.
+     */
+    public void requestViewport(double viewX, double viewY, double viewWidth, double viewHeight,
+                                double scale, Consumer<Tile> onTile) {
+        int requestGeneration = ++generation;
+        int level = levelFor(scale);
+        int span = TILE_SIZE << level;
+        int firstColumn = Math.max(0, (int) Math.floor(viewX / span));
+        int firstRow = Math.max(0, (int) Math.floor(viewY / span));
+        int lastColumn = (int) Math.min((width - 1) / span, Math.floor((viewX + viewWidth) / span));
+        int lastRow = (int) Math.min((height - 1) / span, Math.floor((viewY + viewHeight) / span));
+        List<Long> missing = new ArrayList<>();
+        int minColumn = Integer.MAX_VALUE, minRow = Integer.MAX_VALUE, maxColumn = -1, maxRow = -1;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                long key = tileKey(level, column, row);
+                Tile cached = cache.find(key);
+                if (cached != null) {
+                    onTile.accept(cached);
+                    continue;
+                }
+                missing.add(key);
+                minColumn = Math.min(minColumn, column);
+                minRow = Math.min(minRow, row);
+                maxColumn = Math.max(maxColumn, column);
+                maxRow = Math.max(maxRow, row);
+            }
+        }
+        if (missing.isEmpty()) return;
+        Rectangle bounds = new Rectangle(minColumn * span, minRow * span,
+                                         Math.min((maxColumn + 1) * span, width) - minColumn * span,
+                                         Math.min((maxRow + 1) * span, height) - minRow * span);
+        decoder.execute(() -> {
+            if (requestGeneration != generation) return;
+            try {
+                BufferedImage decoded = decodeRegion(level, bounds);
+                for (long key : missing) {
+                    Tile tile = cutTile(decoded, bounds, level, tileColumn(key), tileRow(key));
+                    cache.add(key, tile);
+                    Platform.runLater(() -> onTile.accept(tile));
+                }
+            } catch (IOException e) {
+                System.err.println("Could not decode tiles at " + bounds + ": " + e.getMessage());
+            }
+        });
+    }
+
+    // Decodes the source region at the level's resolution, averaging each box of source pixels
+    private BufferedImage decodeRegion(int level, Rectangle source) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        if (level == 0) {
+            param.setSourceRegion(source);
+            return reader.read(0, param);
+        }
+        int box = 1 << level;
+        int outWidth = (source.width + box - 1) / box, outHeight = (source.height + box - 1) / box;
+        BufferedImage averaged = new BufferedImage(outWidth, outHeight, BufferedImage.TYPE_INT_ARGB);
+        // Each band covers whole boxes, so every averaged row comes from a single read
+        int bandRows = (int) Math.max(1, Math.min(outHeight, BAND_BYTES / (4L * source.width * box)));
+        int[] row = new int[source.width];
+        long[] sums = new long[outWidth * 4];
+        int[] counts = new int[outWidth];
+        int[] out = new int[outWidth];
+        for (int outY = 0; outY < outHeight; outY += bandRows) {
+            int y = source.y + outY * box;
+            param.setSourceRegion(new Rectangle(source.x, y, source.width,
+                                                Math.min(bandRows * box, source.y + source.height - y)));
+            BufferedImage band = reader.read(0, param);
+            for (int bandY = 0; bandY < band.getHeight(); bandY += box) {
+                Arrays.fill(sums, 0);
+                Arrays.fill(counts, 0);
+                for (int r = bandY; r < Math.min(bandY + box, band.getHeight()); r++) {
+                    band.getRGB(0, r, band.getWidth(), 1, row, 0, band.getWidth());
+                    for (int x = 0; x < band.getWidth(); x++) {
+                        // Colours are weighted by alpha so transparent pixels don't darken the average
+                        int argb = row[x], alpha = argb >>> 24, i = x / box * 4;
+                        sums[i] += alpha;
+                        sums[i + 1] += (long) ((argb >> 16) & 0xFF) * alpha;
+                        sums[i + 2] += (long) ((argb >> 8) & 0xFF) * alpha;
+                        sums[i + 3] += (long) (argb & 0xFF) * alpha;
+                        counts[x / box]++;
+                    }
+                }
+                for (int x = 0; x < outWidth; x++) {
+                    long alpha = sums[x * 4];
+                    out[x] = alpha == 0 ? 0 : (int) ((alpha + counts[x] / 2) / counts[x]) << 24
+                            | (int) ((sums[x * 4 + 1] + alpha / 2) / alpha) << 16
+                            | (int) ((sums[x * 4 + 2] + alpha / 2) / alpha) << 8
+                            | (int) ((sums[x * 4 + 3] + alpha / 2) / alpha);
+                }
+                averaged.setRGB(0, outY + bandY / box, outWidth, 1, out, 0, outWidth);
+            }
+        }
+        return averaged;
+    }
+
+    // Copies one tile out of a region decoded by decodeRegion; the region starts on a tile boundary
+    private Tile cutTile(BufferedImage decoded, Rectangle region, int level, int column, int row) {
+        int subsampling = 1 << level;
+        int span = TILE_SIZE * subsampling;
+        Rectangle source = new Rectangle(column * span, row * span,
+                                         Math.min(span, width - column * span),
+                                         Math.min(span, height - row * span));
+        int x = (source.x - region.x) / subsampling, y = (source.y - region.y) / subsampling;
+        int w = Math.min((source.width + subsampling - 1) / subsampling, decoded.getWidth() - x);
+        int h = Math.min((source.height + subsampling - 1) / subsampling, decoded.getHeight() - y);
+        int[] pixels = decoded.getRGB(x, y, w, h, null, 0, w);
+        WritableImage image = new WritableImage(w, h);
+        image.getPixelWriter().setPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), pixels, 0, w);
+        return new Tile(level, column, row, image, source);
+    }
+
+    private static long tileKey(int level, int column, int row) {
+        return ((long) level << 56) | ((long) row << 28) | column;
+    }
+
+    private static int tileColumn(long key) {
+        return (int) (key & 0xFFFFFFF);
+    }
+
+    private static int tileRow(long key) {
+        return (int) ((key >>> 28) & 0xFFFFFFF);
+    }
+
+    @Override
+    public void close() {
+        generation++;
+        // Release the reader on the decoder thread so it is never disposed mid-read
+        decoder.execute(() -> {
+            reader.dispose();
+            try {
+                stream.close();
+            } catch (IOException e) {
+                System.err.println("Could not close image: " + e.getMessage());
+            }
+        });
+        decoder.shutdown();
+    }
+}
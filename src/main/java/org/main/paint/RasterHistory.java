@@ -0,0 +1,158 @@
+package org.main.paint;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Stack;
+
+/**
+ * Undo history for the drawing layer, stored as region-sized pixel patches.
+ * <p>
+ * The committed raster is kept both as an image for drawing and as a premultiplied ARGB
+ * array for region reads. Each undo step records only the bounding box of the pixels it
+ * changed; full-layer snapshots are diffed into such patches by {@link SnapshotCompactor}.
+ * {@link #share()} hands out the committed image without copying it; the next change then
+ * writes into a fresh image, leaving the shared one untouched (copy-on-write).
+ */
+public class RasterHistory {
+    private static final PixelFormat<IntBuffer> FORMAT = PixelFormat.getIntArgbPreInstance();
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+    private WritableImage image;
+    private boolean shared = false;
+    private final Stack<Patch> undoStack = new Stack<>();
+    private final Stack<Patch> redoStack = new Stack<>();
+    private WriteListener writeListener;
+
+    // Told about every change that does not come from an applied snapshot patch
+    public interface WriteListener {
+        void written(int x, int y, int width, int height, int[] region);
+    }
+
+    static class Patch {
+        final int x, y, width, height;
+        final int[] before;
+        final int[] after;
+
+        Patch(int x, int y, int width, int height, int[] before, int[] after) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    public RasterHistory(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.pixels = new int[width * height];
+        this.image = new WritableImage(width, height);
+    }
+
+    public void setWriteListener(WriteListener writeListener) {
+        this.writeListener = writeListener;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // The committed raster; do not hold on to it across changes, use share() for that
+    public Image getImage() {
+        return image;
+    }
+
+    // Returns the committed raster and guarantees it won't be modified afterwards
+    public Image share() {
+        shared = true;
+        return image;
+    }
+
+    public boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    // Records a patch computed from a snapshot of the layer
+    public void apply(Patch patch) {
+        write(patch.x, patch.y, patch.width, patch.height, patch.after);
+        undoStack.push(patch);
+        redoStack.clear();
+    }
+
+    // Records a change to one region; after holds premultiplied ARGB rows of w * h pixels
+    public boolean commitRegion(int x, int y, int w, int h, int[] after) {
+        int[] before = readRegion(x, y, w, h);
+        if (Arrays.equals(before, after)) return false;
+        apply(new Patch(x, y, w, h, before, after));
+        notifyWritten(x, y, w, h, after);
+        return true;
+    }
+
+    // Copies a region of the committed raster as premultiplied ARGB
+    public int[] readRegion(int x, int y, int w, int h) {
+        return copyRegion(pixels, width, x, y, w, h);
+    }
+
+    public boolean undo() {
+        if (undoStack.isEmpty()) return false;
+        Patch patch = undoStack.pop();
+        write(patch.x, patch.y, patch.width, patch.height, patch.before);
+        notifyWritten(patch.x, patch.y, patch.width, patch.height, patch.before);
+        redoStack.push(patch);
+        return true;
+    }
+
+    public boolean redo() {
+        if (redoStack.isEmpty()) return false;
+        Patch patch = redoStack.pop();
+        write(patch.x, patch.y, patch.width, patch.height, patch.after);
+        notifyWritten(patch.x, patch.y, patch.width, patch.height, patch.after);
+        undoStack.push(patch);
+        return true;
+    }
+
+    // Drops every undo and redo step, keeping the committed raster as it is
+    public void forgetSteps() {
+        undoStack.clear();
+        redoStack.clear();
+    }
+
+    private void notifyWritten(int x, int y, int w, int h, int[] region) {
+        if (writeListener != null) writeListener.written(x, y, w, h, region);
+    }
+
+    private void write(int x, int y, int w, int h, int[] region) {
+        if (shared) {
+            // Someone still draws from the current image, so continue on a private copy
+            image = new WritableImage(width, height);
+            image.getPixelWriter().setPixels(0, 0, width, height, FORMAT, pixels, 0, width);
+            shared = false;
+        }
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(region, row * w, pixels, (y + row) * width + x, w);
+        }
+        image.getPixelWriter().setPixels(x, y, w, h, FORMAT, region, 0, w);
+    }
+
+    static int[] copyRegion(int[] source, int stride, int x, int y, int w, int h) {
+        int[] region = new int[w * h];
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(source, (y + row) * stride + x, region, row * w, w);
+        }
+        return region;
+    }
+}
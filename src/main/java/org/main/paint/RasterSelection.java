@@ -0,0 +1,128 @@
+package org.main.paint;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Pixels lifted off the drawing layer (or pasted) that float above it until committed.
+ * <p>
+ * The selection is a view onto a region of its source image rather than a copy; a copy is
+ * only made when the pixels leave the canvas, e.g. for the clipboard.
+ */
+public class RasterSelection {
+    private final Image source;
+    private final int sourceX;
+    private final int sourceY;
+    private final int width;
+    private final int height;
+    // Lifted selections leave a transparent hole where they were cut from
+    private final boolean lifted;
+    private double x;
+    private double y;
+    private WritableImage copy;
+
+    public RasterSelection(Image source, int sourceX, int sourceY, int width, int height, boolean lifted) {
+        this.source = source;
+        this.sourceX = sourceX;
+        this.sourceY = sourceY;
+        this.width = width;
+        this.height = height;
+        this.lifted = lifted;
+        this.x = sourceX;
+        this.y = sourceY;
+    }
+
+    public Image getSource() {
+        return source;
+    }
+
+    public int getSourceX() {
+        return sourceX;
+    }
+
+    public int getSourceY() {
+        return sourceY;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isLifted() {
+        return lifted;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public void moveTo(double x, double y) {
+        this.x = x;
+        this.y = y;
+    }
+
+    public boolean contains(double testX, double testY) {
+        return testX >= x && testX < x + width && testY >= y && testY < y + height;
+    }
+
+    // Selected pixels as premultiplied ARGB rows
+    public int[] readPixels() {
+        int[] pixels = new int[width * height];
+        source.getPixelReader().getPixels(sourceX, sourceY, width, height,
+                PixelFormat.getIntArgbPreInstance(), pixels, 0, width);
+        return pixels;
+    }
+
+    /**
+     * Composites the selection into a region of the layer given as premultiplied ARGB rows:
+     * clears the hole it was lifted from, then draws it source-over at (destX, destY).
+     */
+    public void compositeInto(int[] region, int regionX, int regionY, int regionWidth, int regionHeight,
+                              int destX, int destY) {
+        if (lifted) {
+            int x0 = Math.max(sourceX, regionX), x1 = Math.min(sourceX + width, regionX + regionWidth);
+            for (int y = Math.max(sourceY, regionY); y < Math.min(sourceY + height, regionY + regionHeight); y++) {
+                for (int x = x0; x < x1; x++) region[(y - regionY) * regionWidth + (x - regionX)] = 0;
+            }
+        }
+        int[] pixels = readPixels();
+        for (int row = 0; row < height; row++) {
+            int ty = destY + row - regionY;
+            if (ty < 0 || ty >= regionHeight) continue;
+            for (int column = 0; column < width; column++) {
+                int tx = destX + column - regionX;
+                if (tx < 0 || tx >= regionWidth) continue;
+                int i = ty * regionWidth + tx;
+                region[i] = blendOver(pixels[row * width + column], region[i]);
+            }
+        }
+    }
+
+    // Source-over for premultiplied ARGB
+    private static int blendOver(int src, int dst) {
+        int alpha = src >>> 24;
+        if (alpha == 255) return src;
+        if (alpha == 0) return dst;
+        int inverse = 255 - alpha;
+        int a = alpha + ((dst >>> 24) * inverse + 127) / 255;
+        int r = ((src >> 16) & 0xFF) + (((dst >> 16) & 0xFF) * inverse + 127) / 255;
+        int g = ((src >> 8) & 0xFF) + (((dst >> 8) & 0xFF) * inverse + 127) / 255;
+        int b = (src & 0xFF) + ((dst & 0xFF) * inverse + 127) / 255;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    // A standalone copy of the selected pixels, made on first use
+    public Image toImage() {
+        if (copy == null) copy = new WritableImage(source.getPixelReader(), sourceX, sourceY, width, height);
+        return copy;
+    }
+}
@@ -0,0 +1,217 @@
+package org.main.paint;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One participant of a shared drawing session.
+ * <p>
+ * Local mutations are buffered and sent as a single frame per {@link #flush()}, which the
+ * controller calls once per rendered frame. The constructor returns at once; the host is
+ * resolved and connected to on the network thread, and frames flushed meanwhile are sent once
+ * the connection is up. Every {@link Listener} callback runs on the network thread; callers are
+ * responsible for moving them onto the FX thread.
+ */
+public class SessionPeer implements AutoCloseable {
+    private final int siteId = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final String host;
+    private final int port;
+    private final Listener listener;
+    private final ConcurrentLinkedQueue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<>();
+    private final SessionProtocol.FrameReader reader = new SessionProtocol.FrameReader();
+    private final SessionProtocol.Encoder encoder = new SessionProtocol.Encoder();
+    private final List<PendingStroke> pendingStrokes = new ArrayList<>();
+    private final List<SessionProtocol.TextDelta> pendingText = new ArrayList<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean disconnected = false;
+    private PendingStroke activeStroke;
+    private int nextStrokeId = 1;
+    private int nextBoxId = 1;
+    private long lamport = 0;
+
+    public interface Listener {
+        void onDeltas(List<Object> deltas);
+
+        default void onConnected() {
+        }
+
+        // Runs once if connecting fails, the connection drops or the relay sends data that doesn't
+        // decode, but not after close()
+        void onDisconnected(String reason);
+    }
+
+    private static class PendingStroke {
+        final int strokeId;
+        final String brushType;
+        final double size;
+        final int argb;
+        float[] points = new float[32];
+        int length = 0;
+        boolean ended = false;
+
+        PendingStroke(int strokeId, String brushType, double size, int argb) {
+            this.strokeId = strokeId;
+            this.brushType = brushType;
+            this.size = size;
+            this.argb = argb;
+        }
+
+        void add(double x, double y) {
+            if (length + 2 > points.length) points = Arrays.copyOf(points, points.length * 2);
+            points[length++] = (float) x;
+            points[length++] = (float) y;
+        }
+    }
+
+    public SessionPeer(String host, int port, Listener listener) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.listener = listener;
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_CONNECT);
+        thread = new Thread(this::run, "session-peer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getSiteId() {
+        return siteId;
+    }
+
+    // Text box ids are unique per site, so boxes created concurrently never collide
+    public synchronized long newBoxId() {
+        return ((long) siteId << 32) | nextBoxId++;
+    }
+
+    public synchronized long nextLamport() {
+        return ++lamport;
+    }
+
+    public synchronized void observeLamport(long remote) {
+        lamport = Math.max(lamport, remote);
+    }
+
+    public synchronized void beginStroke(String brushType, double size, int argb) {
+        activeStroke = new PendingStroke(nextStrokeId++, brushType, size, argb);
+        pendingStrokes.add(activeStroke);
+    }
+
+    public synchronized void addPoint(double x, double y) {
+        if (activeStroke != null) activeStroke.add(x, y);
+    }
+
+    public synchronized void endStroke() {
+        if (activeStroke != null) {
+            activeStroke.ended = true;
+            activeStroke = null;
+        }
+    }
+
+    public synchronized void publishText(SessionProtocol.TextDelta delta) {
+        pendingText.add(delta);
+    }
+
+    // Encodes everything buffered since the last call into one frame; dropped once disconnected
+    public synchronized void flush() {
+        if (disconnected) {
+            pendingStrokes.clear();
+            pendingText.clear();
+            return;
+        }
+        for (PendingStroke stroke : pendingStrokes) {
+            if (stroke.length == 0 && !stroke.ended) continue;
+            encoder.writeStroke(new SessionProtocol.StrokeDelta(siteId, stroke.strokeId, stroke.brushType,
+                    stroke.size, stroke.argb, Arrays.copyOf(stroke.points, stroke.length), stroke.ended));
+            stroke.length = 0;
+        }
+        pendingStrokes.removeIf(stroke -> stroke.ended);
+        for (SessionProtocol.TextDelta delta : pendingText) encoder.writeText(delta);
+        pendingText.clear();
+        if (encoder.isEmpty()) return;
+        outgoing.add(encoder.toFrame());
+        selector.wakeup();
+    }
+
+    private void run() {
+        SelectionKey key = channel.keyFor(selector);
+        String reason = null;
+        try {
+            connect();
+            if (running) listener.onConnected();
+            while (running) {
+                key.interestOps(outgoing.isEmpty() ? SelectionKey.OP_READ
+                                                   : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                selector.select();
+                if (key.isValid() && key.isReadable()) read();
+                if (key.isValid() && key.isWritable()) write();
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            reason = e.getMessage() != null ? e.getMessage() : e.toString();
+        } catch (RuntimeException e) {
+            // A malformed frame fails inside decode; the stream can't be resynchronised after it
+            reason = "Malformed session data (" + e + ")";
+        }
+        disconnected = true;
+        outgoing.clear();
+        if (running) listener.onDisconnected(reason);
+    }
+
+    // Resolving and connecting can take seconds, so both happen here rather than on the caller's thread
+    private void connect() throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) throw new IOException("Unknown host " + host);
+        if (!channel.connect(address)) {
+            while (running && !channel.finishConnect()) {
+                selector.select();
+                selector.selectedKeys().clear();
+            }
+        }
+    }
+
+    private void read() throws IOException {
+        if (channel.read(reader.buffer()) < 0) throw new IOException("Relay closed the connection");
+        List<Object> deltas = new ArrayList<>();
+        for (ByteBuffer frame : reader.drainFrames()) {
+            deltas.addAll(SessionProtocol.decode(SessionProtocol.payloadOf(frame)));
+        }
+        if (!deltas.isEmpty()) listener.onDeltas(deltas);
+    }
+
+    private void write() throws IOException {
+        ByteBuffer head;
+        while ((head = outgoing.peek()) != null) {
+            channel.write(head);
+            if (head.hasRemaining()) return;
+            outgoing.poll();
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+            channel.close();
+            selector.close();
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Could not close session: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package org.main.paint;
+
+import javafx.scene.paint.Color;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding for the deltas exchanged in a shared drawing session.
+ * <p>
+ * Every frame on the wire is {@code [varint length][payload]}, and a payload is a
+ * sequence of deltas. Stroke points are quantized to {@link #POINT_SCALE} of a pixel
+ * and written as zig-zag varints relative to the previous point, so a typical
+ * drag sample costs two or three bytes.
+ */
+public final class SessionProtocol {
+    public static final int POINT_SCALE = 4;
+    // Far above what one rendered frame of drawing produces; a longer length prefix is treated as garbage
+    public static final int MAX_FRAME_BYTES = 4 * 1024 * 1024;
+
+    static final int TYPE_STROKE = 1;
+    static final int TYPE_TEXT = 2;
+
+    private SessionProtocol() {
+    }
+
+    // Points added to one stroke since the previous frame
+    public static class StrokeDelta {
+        public final int siteId;
+        public final int strokeId;
+        public final String brushType;
+        public final double size;
+        public final int argb;
+        public final boolean end;
+        private final float[] points;
+
+        public StrokeDelta(int siteId, int strokeId, String brushType, double size, int argb,
+                           float[] points, boolean end) {
+            this.siteId = siteId;
+            this.strokeId = strokeId;
+            this.brushType = brushType;
+            this.size = size;
+            this.argb = argb;
+            this.points = points;
+            this.end = end;
+        }
+
+        public int pointCount() {
+            return points.length / 2;
+        }
+
+        public double x(int i) {
+            return points[i * 2];
+        }
+
+        public double y(int i) {
+            return points[i * 2 + 1];
+        }
+    }
+
+    // Full state of one text box, ordered by (lamport, siteId) so every peer keeps the same winner
+    public static class TextDelta {
+        public final long boxId;
+        public final long lamport;
+        public final int siteId;
+        public final boolean deleted;
+        public final String text;
+        public final double x;
+        public final double y;
+        public final int argb;
+        public final String fontFamily;
+        public final double fontSize;
+        public final boolean bold;
+        public final boolean italic;
+
+        public TextDelta(long boxId, long lamport, int siteId, boolean deleted, String text,
+                         double x, double y, int argb, String fontFamily, double fontSize,
+                         boolean bold, boolean italic) {
+            this.boxId = boxId;
+            this.lamport = lamport;
+            this.siteId = siteId;
+            this.deleted = deleted;
+            this.text = text;
+            this.x = x;
+            this.y = y;
+            this.argb = argb;
+            this.fontFamily = fontFamily;
+            this.fontSize = fontSize;
+            this.bold = bold;
+            this.italic = italic;
+        }
+
+        public boolean supersedes(long otherLamport, int otherSiteId) {
+            return lamport != otherLamport ? lamport > otherLamport : siteId > otherSiteId;
+        }
+    }
+
+    // Accumulates deltas into a single payload
+    public static class Encoder {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+        public void writeStroke(StrokeDelta delta) {
+            out.write(TYPE_STROKE);
+            writeVarInt(out, delta.siteId);
+            writeVarInt(out, delta.strokeId);
+            writeString(out, delta.brushType);
+            writeVarInt(out, (int) Math.round(delta.size * POINT_SCALE));
+            writeFixedInt(out, delta.argb);
+            out.write(delta.end ? 1 : 0);
+            int count = delta.pointCount();
+            writeVarInt(out, count);
+            int lastX = 0, lastY = 0;
+            for (int i = 0; i < count; i++) {
+                int qx = quantize(delta.x(i));
+                int qy = quantize(delta.y(i));
+                writeVarInt(out, zigZag(qx - lastX));
+                writeVarInt(out, zigZag(qy - lastY));
+                lastX = qx;
+                lastY = qy;
+            }
+        }
+
+        public void writeText(TextDelta delta) {
+            out.write(TYPE_TEXT);
+            writeVarLong(out, delta.boxId);
+            writeVarLong(out, delta.lamport);
+            writeVarInt(out, delta.siteId);
+            out.write((delta.deleted ? 1 : 0) | (delta.bold ? 2 : 0) | (delta.italic ? 4 : 0));
+            if (delta.deleted) return;
+            writeString(out, delta.text);
+            writeVarInt(out, zigZag(quantize(delta.x)));
+            writeVarInt(out, zigZag(quantize(delta.y)));
+            writeFixedInt(out, delta.argb);
+            writeString(out, delta.fontFamily);
+            writeVarInt(out, (int) Math.round(delta.fontSize * POINT_SCALE));
+        }
+
+        public boolean isEmpty() {
+            return out.size() == 0;
+        }
+
+        // Returns the length-prefixed frame and resets the encoder
+        public ByteBuffer toFrame() {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(out.size() + 5);
+            writeVarInt(frame, out.size());
+            byte[] payload = out.toByteArray();
+            frame.write(payload, 0, payload.length);
+            out.reset();
+            return ByteBuffer.wrap(frame.toByteArray());
+        }
+    }
+
+    public static List<Object> decode(ByteBuffer payload) {
+        List<Object> deltas = new ArrayList<>();
+        while (payload.hasRemaining()) {
+            int type = payload.get();
+            switch (type) {
+                case TYPE_STROKE: deltas.add(readStroke(payload)); break;
+                case TYPE_TEXT:   deltas.add(readText(payload)); break;
+                default: throw new IllegalArgumentException("Unknown delta type " + type);
+            }
+        }
+        return deltas;
+    }
+
+    private static StrokeDelta readStroke(ByteBuffer in) {
+        int siteId = readVarInt(in);
+        int strokeId = readVarInt(in);
+        String brushType = readString(in);
+        double size = (double) readVarInt(in) / POINT_SCALE;
+        int argb = in.getInt();
+        boolean end = in.get() != 0;
+        int count = readVarInt(in);
+        float[] points = new float[count * 2];
+        int qx = 0, qy = 0;
+        for (int i = 0; i < count; i++) {
+            qx += unZigZag(readVarInt(in));
+            qy += unZigZag(readVarInt(in));
+            points[i * 2] = (float) qx / POINT_SCALE;
+            points[i * 2 + 1] = (float) qy / POINT_SCALE;
+        }
+        return new StrokeDelta(siteId, strokeId, brushType, size, argb, points, end);
+    }
+
+    private static TextDelta readText(ByteBuffer in) {
+        long boxId = readVarLong(in);
+        long lamport = readVarLong(in);
+        int siteId = readVarInt(in);
+        int flags = in.get();
+        boolean bold = (flags & 2) != 0, italic = (flags & 4) != 0;
+        if ((flags & 1) != 0) {
+            return new TextDelta(boxId, lamport, siteId, true, null, 0, 0, 0, null, 0, bold, italic);
+        }
+        String text = readString(in);
+        double x = (double) unZigZag(readVarInt(in)) / POINT_SCALE;
+        double y = (double) unZigZag(readVarInt(in)) / POINT_SCALE;
+        int argb = in.getInt();
+        String fontFamily = readString(in);
+        double fontSize = (double) readVarInt(in) / POINT_SCALE;
+        return new TextDelta(boxId, lamport, siteId, false, text, x, y, argb, fontFamily, fontSize, bold, italic);
+    }
+
+    // Splits a byte stream into length-prefixed frames; keeps partial frames between reads
+    public static class FrameReader {
+        private ByteBuffer pending = ByteBuffer.allocate(8192);
+
+        public ByteBuffer buffer() {
+            return pending;
+        }
+
+        // Call after reading into buffer(); returns complete frames (including their length prefix)
+        public List<ByteBuffer> drainFrames() {
+            List<ByteBuffer> frames = new ArrayList<>();
+            pending.flip();
+            while (true) {
+                int start = pending.position();
+                int length = tryReadVarInt(pending);
+                if (length > MAX_FRAME_BYTES) {
+                    throw new IllegalArgumentException("Frame of " + length + " bytes exceeds "
+                                                       + MAX_FRAME_BYTES);
+                }
+                if (length < 0 || pending.remaining() < length) {
+                    pending.position(start);
+                    break;
+                }
+                int end = pending.position() + length;
+                ByteBuffer frame = ByteBuffer.allocate(end - start);
+                frame.put(pending.array(), start, end - start).flip();
+                frames.add(frame);
+                pending.position(end);
+            }
+            pending.compact();
+            if (!pending.hasRemaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2);
+                pending.flip();
+                grown.put(pending);
+                pending = grown;
+            }
+            return frames;
+        }
+    }
+
+    // Skips the length prefix of a frame produced by FrameReader or Encoder
+    public static ByteBuffer payloadOf(ByteBuffer frame) {
+        ByteBuffer payload = frame.duplicate();
+        readVarInt(payload);
+        return payload.slice();
+    }
+
+    // Colours travel as packed 8-bit ARGB
+    public static int toArgb(Color color) {
+        return ((int) Math.round(color.getOpacity() * 255) << 24) | ((int) Math.round(color.getRed() * 255) << 16)
+                | ((int) Math.round(color.getGreen() * 255) << 8) | (int) Math.round(color.getBlue() * 255);
+    }
+
+    public static Color fromArgb(int argb) {
+        return Color.rgb((argb >> 16) & 0xFF, (argb >> 8) & 0xFF, argb & 0xFF, ((argb >>> 24) & 0xFF) / 255.0);
+    }
+
+    private static int quantize(double value) {
+        return (int) Math.round(value * POINT_SCALE);
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeFixedInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    // Like readVarInt but returns -1 instead of failing when the buffer ends mid-value
+    private static int tryReadVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!in.hasRemaining()) return -1;
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                // -1 means "incomplete" to callers, so a negative length can only be garbage
+                if (value < 0) throw new IllegalArgumentException("Malformed frame length");
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed frame length");
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
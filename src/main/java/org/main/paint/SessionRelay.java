@@ -0,0 +1,184 @@
+package org.main.paint;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Forwards every frame a client sends to all other connected clients.
+ * <p>
+ * The relay never decodes payloads, so it stays cheap enough to fan out hundreds of
+ * strokes per second on a single selector thread. It runs inside the app when a user
+ * hosts a session, or standalone via {@link #main(String[])}.
+ * <p>
+ * A client that sends a malformed or oversized frame is dropped without affecting the others.
+ * While any client has more than {@link #MAX_QUEUED_BYTES} waiting, the relay stops reading
+ * until it catches up; a client that takes none of its queue for {@link #STALL_NANOS} is dropped.
+ */
+public class SessionRelay implements AutoCloseable {
+    public static final int DEFAULT_PORT = 47800;
+    public static final long MAX_QUEUED_BYTES = 16L * 1024 * 1024;
+    public static final long STALL_NANOS = 5_000_000_000L;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final List<Client> clients = new ArrayList<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private boolean paused = false;
+
+    private static class Client {
+        final SocketChannel channel;
+        final SessionProtocol.FrameReader reader = new SessionProtocol.FrameReader();
+        final ArrayDeque<ByteBuffer> outgoing = new ArrayDeque<>();
+        long queuedBytes = 0;
+        // When the client last took part of its queue, or when the queue last became non-empty
+        long lastProgress;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    public SessionRelay(int port) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(this::run, "session-relay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                // Wakes up now and then so stalled clients are noticed even when nothing else happens
+                selector.select(1000);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) accept();
+                    else {
+                        Client client = (Client) key.attachment();
+                        try {
+                            if (key.isReadable()) read(client);
+                            if (key.isValid() && key.isWritable()) write(client, key);
+                        } catch (IOException e) {
+                            drop(client, key);
+                        } catch (RuntimeException e) {
+                            // A malformed frame; this client's stream can't be resynchronised, the others are fine
+                            System.err.println("Dropped session client: " + e.getMessage());
+                            drop(client, key);
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+                dropStalledClients();
+                updatePaused();
+            }
+        } catch (IOException e) {
+            if (running) System.err.println("Session relay stopped: " + e.getMessage());
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Client client = new Client(channel);
+        clients.add(client);
+        channel.register(selector, interestOf(client), client);
+    }
+
+    private void read(Client client) throws IOException {
+        if (client.channel.read(client.reader.buffer()) < 0) throw new IOException("Client disconnected");
+        for (ByteBuffer frame : client.reader.drainFrames()) {
+            for (Client other : clients) {
+                if (other == client) continue;
+                if (other.outgoing.isEmpty()) other.lastProgress = System.nanoTime();
+                other.outgoing.add(frame.duplicate());
+                other.queuedBytes += frame.remaining();
+                other.channel.keyFor(selector).interestOps(interestOf(other));
+            }
+        }
+        updatePaused();
+    }
+
+    private void write(Client client, SelectionKey key) throws IOException {
+        while (!client.outgoing.isEmpty()) {
+            ByteBuffer head = client.outgoing.peek();
+            if (client.channel.write(head) > 0) client.lastProgress = System.nanoTime();
+            if (head.hasRemaining()) return;
+            client.outgoing.poll();
+            client.queuedBytes -= head.limit();
+        }
+        key.interestOps(interestOf(client));
+    }
+
+    // Reads pause for every client while any one is too far behind, so its queue stays bounded
+    private int interestOf(Client client) {
+        return (paused ? 0 : SelectionKey.OP_READ) | (client.outgoing.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+    }
+
+    private void updatePaused() {
+        boolean full = false;
+        for (Client client : clients) full |= client.queuedBytes > MAX_QUEUED_BYTES;
+        if (full == paused) return;
+        paused = full;
+        for (Client client : clients) client.channel.keyFor(selector).interestOps(interestOf(client));
+    }
+
+    private void dropStalledClients() {
+        long now = System.nanoTime();
+        for (Client client : new ArrayList<>(clients)) {
+            if (client.queuedBytes > MAX_QUEUED_BYTES && now - client.lastProgress > STALL_NANOS) {
+                System.err.println("Dropped session client that stopped reading with "
+                                   + client.queuedBytes + " bytes queued");
+                drop(client, client.channel.keyFor(selector));
+            }
+        }
+    }
+
+    private void drop(Client client, SelectionKey key) {
+        clients.remove(client);
+        key.cancel();
+        try {
+            client.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+            for (Client client : clients) client.channel.close();
+            server.close();
+            selector.close();
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Could not close session relay: " + e.getMessage());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        new SessionRelay(port);
+        System.out.println("Session relay listening on port " + port);
+        Thread.currentThread().join();
+    }
+}
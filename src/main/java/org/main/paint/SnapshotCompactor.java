@@ -0,0 +1,153 @@
+package org.main.paint;
+
+import javafx.application.Platform;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Turns full-layer snapshots into region-sized history patches off the FX thread.
+ * <p>
+ * Snapshot buffers come from a small pool so a finished stroke doesn't allocate a
+ * canvas-sized image. Each snapshot is read back and diffed on a single worker thread
+ * against the worker's own copy of the committed raster; the resulting patch is handed
+ * back on the FX thread. Pool and latency counters are only touched on the FX thread.
+ */
+public class SnapshotCompactor {
+    private static final WritablePixelFormat<IntBuffer> FORMAT = PixelFormat.getIntArgbPreInstance();
+    // Enough for a snapshot being displayed, one being diffed and one being taken
+    private static final int MAX_POOLED = 3;
+
+    private final int width;
+    private final int height;
+    private final ArrayDeque<WritableImage> pool = new ArrayDeque<>();
+    // Owned by the worker: the raster as of the last processed snapshot or write
+    private final int[] baseline;
+    private final int[] scratch;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "snapshot-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private long acquired = 0;
+    private long poolHits = 0;
+    private long taken = 0;
+    private long totalTakenNanos = 0;
+    private long maxTakenNanos = 0;
+    private long landed = 0;
+    private long totalLandedNanos = 0;
+    private long maxLandedNanos = 0;
+
+    public SnapshotCompactor(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.baseline = new int[width * height];
+        this.scratch = new int[width * height];
+    }
+
+    // A canvas-sized buffer to snapshot into; give it back with release() once compacted
+    public WritableImage acquire() {
+        acquired++;
+        WritableImage buffer = pool.poll();
+        if (buffer != null) {
+            poolHits++;
+            return buffer;
+        }
+        return new WritableImage(width, height);
+    }
+
+    public void release(WritableImage buffer) {
+        if (pool.size() < MAX_POOLED) pool.push(buffer);
+    }
+
+    /**
+     * Diffs the snapshot against the previous one on the worker thread and passes the patch,
+     * or null when nothing changed, to onPatch on the FX thread. Patches arrive in the order
+     * the snapshots were submitted.
+     */
+    public void compact(WritableImage snapshot, Consumer<RasterHistory.Patch> onPatch) {
+        worker.execute(() -> {
+            snapshot.getPixelReader().getPixels(0, 0, width, height, FORMAT, scratch, 0, width);
+            RasterHistory.Patch patch = diff();
+            Platform.runLater(() -> onPatch.accept(patch));
+        });
+    }
+
+    // Keeps the worker's raster in step with changes made directly to the history
+    public void written(int x, int y, int w, int h, int[] region) {
+        worker.execute(() -> {
+            for (int row = 0; row < h; row++) {
+                System.arraycopy(region, row * w, baseline, (y + row) * width + x, w);
+            }
+        });
+    }
+
+    private RasterHistory.Patch diff() {
+        int minX = width, minY = height, maxX = -1, maxY = -1;
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                if (scratch[row + x] != baseline[row + x]) {
+                    if (x < minX) minX = x;
+                    if (x > maxX) maxX = x;
+                    if (y < minY) minY = y;
+                    maxY = y;
+                }
+            }
+        }
+        if (maxX < 0) return null;
+        int w = maxX - minX + 1, h = maxY - minY + 1;
+        int[] before = RasterHistory.copyRegion(baseline, width, minX, minY, w, h);
+        int[] after = RasterHistory.copyRegion(scratch, width, minX, minY, w, h);
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(after, row * w, baseline, (minY + row) * width + minX, w);
+        }
+        return new RasterHistory.Patch(minX, minY, w, h, before, after);
+    }
+
+    // Time from requesting a snapshot until the pulse took it
+    public void recordTaken(long nanos) {
+        taken++;
+        totalTakenNanos += nanos;
+        maxTakenNanos = Math.max(maxTakenNanos, nanos);
+    }
+
+    // Time from requesting a snapshot until its patch reached the history, including the diff
+    public void recordLanded(long nanos) {
+        landed++;
+        totalLandedNanos += nanos;
+        maxLandedNanos = Math.max(maxLandedNanos, nanos);
+    }
+
+    public double getAverageTakenMillis() {
+        return taken == 0 ? 0 : totalTakenNanos / 1e6 / taken;
+    }
+
+    public double getMaxTakenMillis() {
+        return maxTakenNanos / 1e6;
+    }
+
+    public double getAverageLandedMillis() {
+        return landed == 0 ? 0 : totalLandedNanos / 1e6 / landed;
+    }
+
+    public double getMaxLandedMillis() {
+        return maxLandedNanos / 1e6;
+    }
+
+    public double getPoolHitRate() {
+        return acquired == 0 ? 0 : (double) poolHits / acquired;
+    }
+
+    public String describe() {
+        return String.format("Snapshot taken %.1f ms avg (%.1f max), in history %.1f ms avg (%.1f max), "
+                             + "pool hits %.0f%%", getAverageTakenMillis(), getMaxTakenMillis(),
+                             getAverageLandedMillis(), getMaxLandedMillis(), getPoolHitRate() * 100);
+    }
+}
@@ -0,0 +1,137 @@
+package org.main.paint;
+
+/**
+ * Simplifies and smooths a stroke while it is being drawn.
+ * <p>
+ * Raw samples are simplified Douglas-Peucker style over a sliding window: a window grows while
+ * every sample in it stays within {@code tolerance} pixels of the chord from the last kept
+ * vertex to the newest sample, and the sample before the first violation becomes the next
+ * vertex. Kept vertices are joined with Catmull-Rom splines emitted as cubic Bezier segments,
+ * so a stroke renders as a handful of curves instead of one line per mouse event.
+ * <p>
+ * A curve is only final once the vertex after it is known, so the curves trail the newest
+ * sample by up to two segments. The provisional tail, a polyline from the end of the last
+ * curve through the newest vertex to the newest sample, is reported after every sample so
+ * it can be drawn on a layer that is cleared as the curves catch up.
+ */
+public class StrokeSmoother {
+    // Forces a vertex on long straight runs so the rendered stroke doesn't trail the cursor
+    private static final double MAX_SEGMENT = 16.0;
+    private static final int MAX_WINDOW = 64;
+
+    public interface Listener {
+        void onVertex(double x, double y);
+
+        void onCurve(double x0, double y0, double c1x, double c1y, double c2x, double c2y, double x1, double y1);
+
+        // Replaces the previous tail; count is 0 once the stroke has ended
+        default void onTail(double[] points, int count) {
+        }
+    }
+
+    private final Listener listener;
+    private double tolerance;
+    // Last four kept vertices as a ring indexed by vertex number; a curve is emitted once the vertex after it is known
+    private final double[] vx = new double[4];
+    private final double[] vy = new double[4];
+    private int vertexCount = 0;
+    private final double[] windowX = new double[MAX_WINDOW];
+    private final double[] windowY = new double[MAX_WINDOW];
+    private int windowSize = 0;
+    private final double[] tail = new double[6];
+
+    public StrokeSmoother(double tolerance, Listener listener) {
+        this.tolerance = tolerance;
+        this.listener = listener;
+    }
+
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    public void begin(double x, double y) {
+        vertexCount = 0;
+        windowSize = 0;
+        keepVertex(x, y);
+        emitTail();
+    }
+
+    public void add(double x, double y) {
+        if (vertexCount == 0) {
+            begin(x, y);
+            return;
+        }
+        double ax = vx[(vertexCount - 1) & 3], ay = vy[(vertexCount - 1) & 3];
+        if (windowSize > 0 && (windowSize == MAX_WINDOW
+                || Math.hypot(x - ax, y - ay) > MAX_SEGMENT || !windowFits(ax, ay, x, y))) {
+            keepVertex(windowX[windowSize - 1], windowY[windowSize - 1]);
+            windowSize = 0;
+        }
+        windowX[windowSize] = x;
+        windowY[windowSize] = y;
+        windowSize++;
+        emitTail();
+    }
+
+    // Keeps the final sample and flushes the curves still waiting for a following vertex
+    public void end() {
+        if (vertexCount == 0) return;
+        if (windowSize > 0) keepVertex(windowX[windowSize - 1], windowY[windowSize - 1]);
+        int last = vertexCount - 1;
+        if (last >= 1) emitCurve(Math.max(last - 2, 0), last - 1, last, last);
+        vertexCount = 0;
+        windowSize = 0;
+        listener.onTail(tail, 0);
+    }
+
+    // True when every window sample lies within tolerance of the segment a-b; measuring against the
+    // segment rather than its line keeps the turning point of a stroke that doubles back
+    private boolean windowFits(double ax, double ay, double bx, double by) {
+        double dx = bx - ax, dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        for (int i = 0; i < windowSize; i++) {
+            double t = lengthSquared == 0 ? 0
+                    : Math.max(0, Math.min(1, ((windowX[i] - ax) * dx + (windowY[i] - ay) * dy) / lengthSquared));
+            double distance = Math.hypot(windowX[i] - (ax + t * dx), windowY[i] - (ay + t * dy));
+            if (distance > tolerance) return false;
+        }
+        return true;
+    }
+
+    private void keepVertex(double x, double y) {
+        int n = vertexCount++;
+        vx[n & 3] = x;
+        vy[n & 3] = y;
+        listener.onVertex(x, y);
+        // The segment ending at the previous vertex now has both neighbours
+        if (n >= 2) emitCurve(Math.max(n - 3, 0), n - 2, n - 1, n);
+    }
+
+    // From the end of the last emitted curve through the newest vertex to the newest sample
+    private void emitTail() {
+        int last = vertexCount - 1, length = 0;
+        if (last >= 1) {
+            tail[length++] = vx[(last - 1) & 3];
+            tail[length++] = vy[(last - 1) & 3];
+        }
+        tail[length++] = vx[last & 3];
+        tail[length++] = vy[last & 3];
+        if (windowSize > 0) {
+            tail[length++] = windowX[windowSize - 1];
+            tail[length++] = windowY[windowSize - 1];
+        }
+        listener.onTail(tail, length / 2);
+    }
+
+    // Catmull-Rom segment p1 -> p2 with neighbours p0 and p3 (vertex numbers), as a cubic Bezier
+    private void emitCurve(int n0, int n1, int n2, int n3) {
+        int p0 = n0 & 3, p1 = n1 & 3, p2 = n2 & 3, p3 = n3 & 3;
+        double c1x = vx[p1] + (vx[p2] - vx[p0]) / 6, c1y = vy[p1] + (vy[p2] - vy[p0]) / 6;
+        double c2x = vx[p2] - (vx[p3] - vx[p1]) / 6, c2y = vy[p2] - (vy[p3] - vy[p1]) / 6;
+        listener.onCurve(vx[p1], vy[p1], c1x, c1y, c2x, c2y, vx[p2], vy[p2]);
+    }
+}
@@ -6,6 +6,7 @@ import javafx.scene.text.FontPosture;
 import javafx.scene.text.FontWeight;
 
 public class TextBox {
+    private long id;
     private String text;
     private double x;
     private double y;
@@ -29,6 +30,22 @@ public class TextBox {
         this.isEditing = true; // New text boxes start in editing mode
     }
 
+    public TextBox copy() {
+        TextBox box = new TextBox(text, x, y, color, fontFamily, fontSize, isBold, isItalic);
+        box.id = id;
+        box.isEditing = false;
+        return box;
+    }
+
+    // Identifies the box across peers in a shared session; 0 until first shared
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
     public String getText() {
         return text;
     }
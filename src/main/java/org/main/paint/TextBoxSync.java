@@ -0,0 +1,89 @@
+package org.main.paint;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a list of text boxes in step with the other peers of a session.
+ * <p>
+ * The last version of every box that peers have seen is kept. A remote delta wins when it is
+ * newer by (lamport, siteId), the same order on every peer, so concurrent edits converge on
+ * the last writer; a deleted box keeps its version as a tombstone so an older edit can't bring
+ * it back. Local changes are found by diffing the boxes against those versions, once per
+ * rendered frame. Not thread-safe; the controller calls it on the FX thread only.
+ */
+public class TextBoxSync {
+    private final SessionPeer peer;
+    private final Map<Long, SessionProtocol.TextDelta> versions = new HashMap<>();
+
+    public TextBoxSync(SessionPeer peer) {
+        this.peer = peer;
+    }
+
+    // Gives boxes from before the session ids of this site, so they are published as new boxes
+    public void adopt(List<TextBox> boxes) {
+        for (TextBox box : boxes) box.setId(peer.newBoxId());
+    }
+
+    // Applies a delta from another peer to the boxes; returns whether any box changed
+    public boolean applyRemote(SessionProtocol.TextDelta delta, List<TextBox> boxes) {
+        peer.observeLamport(delta.lamport);
+        SessionProtocol.TextDelta known = versions.get(delta.boxId);
+        if (known != null && !delta.supersedes(known.lamport, known.siteId)) return false;
+        versions.put(delta.boxId, delta);
+        TextBox box = null;
+        for (TextBox b : boxes) if (b.getId() == delta.boxId) box = b;
+        if (delta.deleted) return box != null && boxes.remove(box);
+        if (box == null) {
+            box = new TextBox(delta.text, delta.x, delta.y, SessionProtocol.fromArgb(delta.argb),
+                              delta.fontFamily, delta.fontSize, delta.bold, delta.italic);
+            box.setId(delta.boxId);
+            box.setEditing(false);
+            boxes.add(box);
+        } else {
+            box.setText(delta.text);
+            box.setX(delta.x);
+            box.setY(delta.y);
+            box.setColor(SessionProtocol.fromArgb(delta.argb));
+            box.setFontFamily(delta.fontFamily);
+            box.setFontSize(delta.fontSize);
+            box.setBold(delta.bold);
+            box.setItalic(delta.italic);
+        }
+        return true;
+    }
+
+    // Diffs the boxes against what peers last saw and queues deltas on the peer for anything that changed
+    public void publishChanges(List<TextBox> boxes) {
+        Map<Long, TextBox> current = new HashMap<>();
+        for (TextBox box : boxes) {
+            if (box.getId() == 0) box.setId(peer.newBoxId());
+            current.put(box.getId(), box);
+            SessionProtocol.TextDelta known = versions.get(box.getId());
+            if (known != null && !known.deleted && matches(known, box)) continue;
+            SessionProtocol.TextDelta delta = new SessionProtocol.TextDelta(box.getId(), peer.nextLamport(),
+                    peer.getSiteId(), false, box.getText(), box.getX(), box.getY(),
+                    SessionProtocol.toArgb(box.getColor()), box.getFontFamily(), box.getFontSize(),
+                    box.isBold(), box.isItalic());
+            versions.put(box.getId(), delta);
+            peer.publishText(delta);
+        }
+        for (SessionProtocol.TextDelta known : new ArrayList<>(versions.values())) {
+            if (known.deleted || current.containsKey(known.boxId)) continue;
+            SessionProtocol.TextDelta delta = new SessionProtocol.TextDelta(known.boxId, peer.nextLamport(),
+                    peer.getSiteId(), true, null, 0, 0, 0, null, 0, false, false);
+            versions.put(known.boxId, delta);
+            peer.publishText(delta);
+        }
+    }
+
+    private static boolean matches(SessionProtocol.TextDelta delta, TextBox box) {
+        double tolerance = 1.0 / SessionProtocol.POINT_SCALE;
+        return delta.text.equals(box.getText()) && delta.fontFamily.equals(box.getFontFamily())
+                && Math.abs(delta.x - box.getX()) < tolerance && Math.abs(delta.y - box.getY()) < tolerance
+                && delta.argb == SessionProtocol.toArgb(box.getColor()) && delta.fontSize == box.getFontSize()
+                && delta.bold == box.isBold() && delta.italic == box.isItalic();
+    }
+}
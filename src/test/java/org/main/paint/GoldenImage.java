@@ -0,0 +1,98 @@
+package org.main.paint;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * ARGB pixels of a rendered frame, with PNG I/O and a perceptual comparison.
+ * <p>
+ * Two pixels count as different when their YIQ colour distance (the metric used by
+ * pixelmatch) exceeds {@code threshold}; anti-aliasing noise stays well below 0.1.
+ */
+class GoldenImage {
+    private static final double MAX_YIQ_DELTA = 35215;
+
+    final int width;
+    final int height;
+    final int[] argb;
+
+    GoldenImage(int width, int height, int[] argb) {
+        this.width = width;
+        this.height = height;
+        this.argb = argb;
+    }
+
+    static GoldenImage of(Image image) {
+        int w = (int) image.getWidth(), h = (int) image.getHeight();
+        int[] argb = new int[w * h];
+        image.getPixelReader().getPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), argb, 0, w);
+        return new GoldenImage(w, h, argb);
+    }
+
+    static GoldenImage read(InputStream in) throws IOException {
+        BufferedImage image = ImageIO.read(in);
+        int w = image.getWidth(), h = image.getHeight();
+        return new GoldenImage(w, h, image.getRGB(0, 0, w, h, null, 0, w));
+    }
+
+    void write(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, width, height, argb, 0, width);
+        ImageIO.write(image, "png", file.toFile());
+    }
+
+    // Fraction of pixels whose perceptual difference exceeds threshold (0..1 of the YIQ range)
+    double differenceRatio(GoldenImage other, double threshold) {
+        if (width != other.width || height != other.height) return 1.0;
+        double limit = MAX_YIQ_DELTA * threshold * threshold;
+        int different = 0;
+        for (int i = 0; i < argb.length; i++) {
+            if (argb[i] != other.argb[i] && colorDelta(argb[i], other.argb[i]) > limit) different++;
+        }
+        return (double) different / argb.length;
+    }
+
+    // Marks differing pixels red over a faded copy of this image
+    GoldenImage diff(GoldenImage other, double threshold) {
+        double limit = MAX_YIQ_DELTA * threshold * threshold;
+        int[] out = new int[argb.length];
+        for (int i = 0; i < argb.length; i++) {
+            boolean differs = i < other.argb.length && colorDelta(argb[i], other.argb[i]) > limit;
+            int gray = 255 - (255 - (int) luma(argb[i])) / 4;
+            out[i] = differs ? 0xFFFF0000 : 0xFF000000 | gray << 16 | gray << 8 | gray;
+        }
+        return new GoldenImage(width, height, out);
+    }
+
+    private static double colorDelta(int a, int b) {
+        double y = luma(a) - luma(b);
+        double i = inPhase(a) - inPhase(b);
+        double q = quadrature(a) - quadrature(b);
+        return 0.5053 * y * y + 0.299 * i * i + 0.1957 * q * q;
+    }
+
+    // Channels blended over white so transparent and white pixels compare equal
+    private static double channel(int argb, int shift) {
+        double alpha = (argb >>> 24) / 255.0;
+        return 255 + (((argb >> shift) & 0xFF) - 255) * alpha;
+    }
+
+    private static double luma(int argb) {
+        return channel(argb, 16) * 0.29889531 + channel(argb, 8) * 0.58662247 + channel(argb, 0) * 0.11448223;
+    }
+
+    private static double inPhase(int argb) {
+        return channel(argb, 16) * 0.59597799 - channel(argb, 8) * 0.27417610 - channel(argb, 0) * 0.32180189;
+    }
+
+    private static double quadrature(int argb) {
+        return channel(argb, 16) * 0.21147017 - channel(argb, 8) * 0.52261711 + channel(argb, 0) * 0.31114694;
+    }
+}
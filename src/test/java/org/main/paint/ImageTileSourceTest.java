@@ -0,0 +1,64 @@
+package org.main.paint;
+
+import javafx.scene.image.PixelReader;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ImageTileSourceTest {
+    private static final int SIZE = 1024;
+    private static final int LINE_SPACING = 32;
+    // Off every multiple of the box size, so a subsampled read would step over the lines
+    private static final int LINE_OFFSET = 5;
+
+    @BeforeAll
+    static void startToolkit() throws Exception {
+        // Tiles are delivered on the FX thread
+        SessionReplay.startToolkit();
+    }
+
+    @Test
+    void coarseLevelsAverageThinLinesInsteadOfDroppingThem(@TempDir Path dir) throws Exception {
+        // White, with a one pixel black vertical line every 32 px
+        BufferedImage source = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                source.setRGB(x, y, x % LINE_SPACING == LINE_OFFSET ? 0xFF000000 : 0xFFFFFFFF);
+            }
+        }
+        File file = dir.resolve("lines.png").toFile();
+        ImageIO.write(source, "png", file);
+
+        try (ImageTileSource tiles = ImageTileSource.open(file)) {
+            double scale = 1.0 / 8;
+            int level = tiles.levelFor(scale);
+            assertEquals(3, level);
+            CompletableFuture<ImageTileSource.Tile> delivered = new CompletableFuture<>();
+            tiles.requestViewport(0, 0, SIZE, SIZE, scale, delivered::complete);
+            ImageTileSource.Tile tile = delivered.get(10, TimeUnit.SECONDS);
+
+            int box = 1 << level;
+            assertEquals(SIZE / box, (int) tile.image.getWidth());
+            PixelReader pixels = tile.image.getPixelReader();
+            // One black pixel in each box of eight columns: 7/8 white
+            int lineGrey = Math.round(255 * (box - 1) / (float) box);
+            for (int x = 0; x < SIZE / box; x++) {
+                boolean hasLine = x % (LINE_SPACING / box) == LINE_OFFSET / box;
+                int expected = hasLine ? lineGrey : 255;
+                for (int y = 0; y < SIZE / box; y += 17) {
+                    int argb = pixels.getArgb(x, y);
+                    assertEquals(0xFF, argb >>> 24, "alpha at " + x + "," + y);
+                    assertEquals(expected, (argb >> 8) & 0xFF, 1, "green at " + x + "," + y);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.main.paint;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RasterHistoryTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    @BeforeAll
+    static void startToolkit() throws Exception {
+        // WritableImage needs the toolkit, though not its thread
+        SessionReplay.startToolkit();
+    }
+
+    @Test
+    void undoAndRedoRestoreExactPixels() {
+        RasterHistory history = new RasterHistory(WIDTH, HEIGHT);
+        int[] empty = new int[WIDTH * HEIGHT];
+        int[] first = randomPixels(20, 10, 1);
+        int[] second = randomPixels(30, 25, 2);
+
+        assertTrue(history.commitRegion(5, 5, 20, 10, first));
+        int[] afterFirst = pixelsOf(history);
+        // Overlaps the first region, so undoing it must bring back the first region's pixels
+        assertTrue(history.commitRegion(15, 8, 30, 25, second));
+        int[] afterSecond = pixelsOf(history);
+        assertArrayEquals(second, history.readRegion(15, 8, 30, 25));
+
+        assertTrue(history.undo());
+        assertArrayEquals(afterFirst, pixelsOf(history));
+        assertTrue(history.undo());
+        assertArrayEquals(empty, pixelsOf(history));
+        assertFalse(history.undo());
+
+        assertTrue(history.redo());
+        assertArrayEquals(afterFirst, pixelsOf(history));
+        assertTrue(history.redo());
+        assertArrayEquals(afterSecond, pixelsOf(history));
+        assertFalse(history.redo());
+    }
+
+    @Test
+    void unchangedRegionIsNotAnUndoStep() {
+        RasterHistory history = new RasterHistory(WIDTH, HEIGHT);
+        assertFalse(history.commitRegion(0, 0, 8, 8, new int[64]));
+        assertFalse(history.canUndo());
+    }
+
+    @Test
+    void sharedImageIsNotWrittenAfterwards() {
+        RasterHistory history = new RasterHistory(WIDTH, HEIGHT);
+        history.commitRegion(0, 0, 16, 16, randomPixels(16, 16, 3));
+        Image shared = history.share();
+        int[] before = imagePixels(shared);
+
+        history.commitRegion(8, 8, 32, 32, randomPixels(32, 32, 4));
+        history.undo();
+        history.redo();
+
+        assertArrayEquals(before, imagePixels(shared));
+        assertNotSame(shared, history.getImage());
+        // The history's own image keeps up with its pixels
+        assertArrayEquals(history.readRegion(0, 0, WIDTH, HEIGHT), imagePixels(history.getImage()));
+    }
+
+    // Reads both copies of the committed raster and checks they agree
+    private static int[] pixelsOf(RasterHistory history) {
+        int[] pixels = history.readRegion(0, 0, WIDTH, HEIGHT);
+        assertArrayEquals(pixels, imagePixels(history.getImage()));
+        return pixels;
+    }
+
+    private static int[] imagePixels(Image image) {
+        int w = (int) image.getWidth(), h = (int) image.getHeight();
+        int[] pixels = new int[w * h];
+        image.getPixelReader().getPixels(0, 0, w, h, PixelFormat.getIntArgbPreInstance(), pixels, 0, w);
+        return pixels;
+    }
+
+    // Valid premultiplied ARGB, so no channel exceeds alpha
+    private static int[] randomPixels(int w, int h, long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[w * h];
+        for (int i = 0; i < pixels.length; i++) {
+            int a = 1 + random.nextInt(255);
+            pixels[i] = a << 24 | random.nextInt(a + 1) << 16 | random.nextInt(a + 1) << 8 | random.nextInt(a + 1);
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,66 @@
+package org.main.paint;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RasterSelectionTest {
+    private static final int RED = 0xFFFF0000;
+
+    @BeforeAll
+    static void startToolkit() throws Exception {
+        SessionReplay.startToolkit();
+    }
+
+    @Test
+    void liftedSelectionMovedPartlyOffCanvasCommitsItsVisiblePart() {
+        int width = 40, height = 30;
+        RasterHistory history = new RasterHistory(width, height);
+        int[] block = new int[10 * 10];
+        Arrays.fill(block, RED);
+        history.commitRegion(5, 5, 10, 10, block);
+        int[] original = history.readRegion(0, 0, width, height);
+
+        RasterSelection selection = new RasterSelection(history.share(), 5, 5, 10, 10, true);
+        selection.moveTo(35, 25);
+        // Same region arithmetic as Controller.commitSelection: old and new area, clamped to the canvas
+        int x0 = 5, y0 = 5, x1 = Math.min(width, 35 + 10), y1 = Math.min(height, 25 + 10);
+        int[] region = history.readRegion(x0, y0, x1 - x0, y1 - y0);
+        selection.compositeInto(region, x0, y0, x1 - x0, y1 - y0, 35, 25);
+        history.commitRegion(x0, y0, x1 - x0, y1 - y0, region);
+
+        int[] committed = history.readRegion(0, 0, width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int expected = x >= 35 && y >= 25 ? RED : 0;
+                assertEquals(expected, committed[y * width + x], "pixel " + x + "," + y);
+            }
+        }
+        history.undo();
+        assertArrayEquals(original, history.readRegion(0, 0, width, height));
+    }
+
+    @Test
+    void semiTransparentPixelsBlendSourceOverPremultiplied() {
+        // Premultiplied: 50% red, 25% green, fully transparent
+        int[] pasted = {0x80800000, 0x40004000, 0x00000000, 0x80800000};
+        // Opaque blue, 50% blue, opaque green, fully transparent
+        int[] layer = {0xFF0000FF, 0x80000080, 0xFF00FF00, 0x00000000};
+        WritableImage image = new WritableImage(4, 1);
+        image.getPixelWriter().setPixels(0, 0, 4, 1, PixelFormat.getIntArgbPreInstance(), pasted, 0, 4);
+        RasterSelection selection = new RasterSelection(image, 0, 0, 4, 1, false);
+
+        selection.compositeInto(layer, 0, 0, 4, 1, 0, 0);
+
+        // a = sa + da * (255 - sa) / 255, and likewise for each premultiplied colour channel
+        assertEquals(0xFF80007F, layer[0]);
+        assertEquals(0xA0004060, layer[1]);
+        assertEquals(0xFF00FF00, layer[2]);
+        assertEquals(0x80800000, layer[3]);
+    }
+}
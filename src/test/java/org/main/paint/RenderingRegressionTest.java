@@ -0,0 +1,100 @@
+package org.main.paint;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Replays every session in {@code src/test/resources/sessions} and fails when the rendered
+ * canvas drifts from its golden image or the replay exceeds its allocation budget. The time
+ * budget depends on the machine and is only checked with {@code -Dreplay.checkTime=true}
+ * (the {@code replay-timing} profile).
+ * <p>
+ * Run with {@code -Dgolden.update=true} to (re)record golden images into
+ * {@code src/test/resources/golden}. A session without a golden fails, with the rendered
+ * frame written to {@code target/golden-candidates} for review.
+ */
+class RenderingRegressionTest {
+    private static final Path GOLDEN_SOURCES = Paths.get("src", "test", "resources", "golden");
+    private static final Path CANDIDATES = Paths.get("target", "golden-candidates");
+    private static final Path METRICS = Paths.get("target", "replay-metrics.csv");
+
+    @BeforeAll
+    static void startToolkit() throws Exception {
+        SessionReplay.startToolkit();
+        Files.createDirectories(METRICS.getParent());
+        Files.writeString(METRICS, "session,millis,allocatedBytes\n", StandardCharsets.UTF_8);
+    }
+
+    static Stream<String> sessions() throws IOException, URISyntaxException {
+        Path dir = Paths.get(RenderingRegressionTest.class.getResource("/sessions").toURI());
+        return Files.list(dir)
+                .map(path -> path.getFileName().toString())
+                .filter(name -> name.endsWith(".json"))
+                .map(name -> name.substring(0, name.length() - ".json".length()))
+                .sorted();
+    }
+
+    @ParameterizedTest
+    @MethodSource("sessions")
+    void replayMatchesGoldenWithinBudget(String name) throws Exception {
+        JSONObject session;
+        try (InputStream in = getClass().getResourceAsStream("/sessions/" + name + ".json")) {
+            session = new JSONObject(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        // The first run pays for class loading and JIT warm-up; only the second one is measured
+        SessionReplay.replay(session);
+        SessionReplay.Result result = SessionReplay.replay(session);
+
+        long millis = result.nanos / 1_000_000;
+        Files.writeString(METRICS, name + "," + millis + "," + result.allocatedBytes + "\n",
+                          StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        double scale = Double.parseDouble(System.getProperty("replay.budgetScale", "1.0"));
+        long maxMillis = (long) (session.getLong("maxMillis") * scale);
+        long maxBytes = (long) (session.getLong("maxAllocatedMB") * 1024 * 1024 * scale);
+        if (Boolean.getBoolean("replay.checkTime")) {
+            assertTrue(millis <= maxMillis, name + ": replay took " + millis + " ms, budget " + maxMillis + " ms");
+        }
+        assertTrue(result.allocatedBytes <= maxBytes, name + ": replay allocated "
+                + result.allocatedBytes / (1024 * 1024) + " MB, budget " + maxBytes / (1024 * 1024) + " MB");
+
+        if (Boolean.getBoolean("golden.update")) {
+            result.image.write(GOLDEN_SOURCES.resolve(name + ".png"));
+            return;
+        }
+        GoldenImage golden;
+        try (InputStream in = getClass().getResourceAsStream("/golden/" + name + ".png")) {
+            if (in == null) {
+                result.image.write(CANDIDATES.resolve(name + ".png"));
+                fail("No golden image for " + name + "; review the candidate in " + CANDIDATES
+                     + " and record it with -Dgolden.update=true");
+            }
+            golden = GoldenImage.read(in);
+        }
+
+        double threshold = session.optDouble("colorThreshold", 0.1);
+        double ratio = result.image.differenceRatio(golden, threshold);
+        double maxRatio = session.optDouble("maxDifferentPixels", 0.001);
+        if (ratio > maxRatio) {
+            result.image.write(CANDIDATES.resolve(name + ".png"));
+            result.image.diff(golden, threshold).write(CANDIDATES.resolve(name + "-diff.png"));
+        }
+        assertTrue(ratio <= maxRatio, String.format(
+                "%s: %.3f%% of pixels differ from the golden image (allowed %.3f%%), see %s",
+                name, ratio * 100, maxRatio * 100, CANDIDATES));
+    }
+}
@@ -0,0 +1,350 @@
+package org.main.paint;
+
+import javafx.scene.paint.Color;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs a relay and several peers over loopback sockets.
+ */
+class SessionLoopbackTest {
+    // Box id the peers ping each other on until the relay has accepted all of them
+    private static final long HELLO_BOX = -1;
+
+    private SessionRelay relay;
+    private final List<Replica> replicas = new ArrayList<>();
+    private Replica first;
+    private Replica second;
+
+    // One peer's text boxes, kept in step by TextBoxSync as the controller does on the FX thread
+    private static class Replica implements SessionPeer.Listener {
+        final SessionPeer peer;
+        final List<TextBox> boxes = new ArrayList<>();
+        final TextBoxSync sync;
+        final AtomicInteger remotePoints = new AtomicInteger();
+        final AtomicInteger remoteText = new AtomicInteger();
+        final CompletableFuture<Void> connected = new CompletableFuture<>();
+        final CompletableFuture<String> disconnected = new CompletableFuture<>();
+        final Set<Integer> greeters = new HashSet<>();
+        StrokeObserver strokes;
+
+        Replica(int port) throws IOException {
+            peer = new SessionPeer("localhost", port, this);
+            sync = new TextBoxSync(peer);
+        }
+
+        @Override
+        public void onConnected() {
+            connected.complete(null);
+        }
+
+        @Override
+        public void onDisconnected(String reason) {
+            disconnected.complete(reason);
+        }
+
+        // Runs on the peer's network thread, so everything a replica holds is guarded by the replica
+        @Override
+        public synchronized void onDeltas(List<Object> deltas) {
+            for (Object delta : deltas) {
+                if (delta instanceof SessionProtocol.StrokeDelta) {
+                    SessionProtocol.StrokeDelta stroke = (SessionProtocol.StrokeDelta) delta;
+                    if (strokes != null) strokes.observe(stroke);
+                    remotePoints.addAndGet(stroke.pointCount());
+                } else {
+                    SessionProtocol.TextDelta text = (SessionProtocol.TextDelta) delta;
+                    if (text.boxId == HELLO_BOX) greeters.add(text.siteId);
+                    else {
+                        sync.applyRemote(text, boxes);
+                        remoteText.incrementAndGet();
+                    }
+                }
+            }
+        }
+
+        synchronized long addBox(String text) {
+            TextBox box = new TextBox(text, 10, 20, Color.BLACK, "System", 12, false, false);
+            boxes.add(box);
+            publish();
+            return box.getId();
+        }
+
+        // Edits a box the way the text tool does; a box another peer deleted meanwhile is left alone
+        synchronized void edit(long boxId, String text) {
+            for (TextBox box : boxes) if (box.getId() == boxId) box.setText(text);
+            publish();
+        }
+
+        synchronized void delete(long boxId) {
+            boxes.removeIf(box -> box.getId() == boxId);
+            publish();
+        }
+
+        // What the canvas would show, by box id
+        synchronized Map<Long, String> contents() {
+            Map<Long, String> contents = new TreeMap<>();
+            for (TextBox box : boxes) contents.put(box.getId(), box.getText() + " at " + box.getX() + "," + box.getY());
+            return contents;
+        }
+
+        synchronized int greeterCount() {
+            return greeters.size();
+        }
+
+        synchronized void observeStrokes(StrokeObserver observer) {
+            strokes = observer;
+        }
+
+        private void publish() {
+            sync.publishChanges(boxes);
+            peer.flush();
+        }
+
+        void hello() {
+            peer.publishText(new SessionProtocol.TextDelta(HELLO_BOX, 0, peer.getSiteId(), true, null, 0, 0, 0,
+                    null, 0, false, false));
+            peer.flush();
+        }
+    }
+
+    // Checks that each remote stroke's points arrive in the order they were drawn
+    private static class StrokeObserver {
+        final Map<Long, Integer> nextPoint = new HashMap<>();
+        int ended = 0;
+        int mostOpen = 0;
+        String error;
+
+        void observe(SessionProtocol.StrokeDelta delta) {
+            long key = ((long) delta.siteId << 32) | delta.strokeId;
+            int next = nextPoint.getOrDefault(key, 0);
+            for (int i = 0; i < delta.pointCount(); i++, next++) {
+                // Artists draw point n of a stroke at x = n
+                if (error == null && delta.x(i) != next) {
+                    error = "stroke " + key + " sent point " + delta.x(i) + " where " + next + " was due";
+                }
+            }
+            if (delta.end) {
+                nextPoint.remove(key);
+                ended++;
+            } else {
+                nextPoint.put(key, next);
+            }
+            mostOpen = Math.max(mostOpen, nextPoint.size());
+        }
+    }
+
+    @BeforeEach
+    void connect() throws Exception {
+        relay = new SessionRelay(0);
+        first = join();
+        second = join();
+        awaitGreetings();
+    }
+
+    private Replica join() throws IOException {
+        Replica replica = new Replica(relay.getPort());
+        replicas.add(replica);
+        return replica;
+    }
+
+    // The relay only forwards to clients it has accepted, so wait until every peer hears all the others
+    private void awaitGreetings() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!replicas.stream().allMatch(replica -> replica.greeterCount() == replicas.size() - 1)) {
+            assertTrue(System.nanoTime() < deadline, "peers never saw each other through the relay");
+            for (Replica replica : replicas) replica.hello();
+            Thread.sleep(10);
+        }
+    }
+
+    @AfterEach
+    void disconnect() {
+        for (Replica replica : replicas) replica.peer.close();
+        relay.close();
+    }
+
+    @Test
+    void interleavedStrokesFromSeveralPeersArriveInOrder() throws Exception {
+        Replica observer = join();
+        List<Replica> artists = List.of(first, second, join());
+        awaitGreetings();
+        StrokeObserver strokes = new StrokeObserver();
+        observer.observeStrokes(strokes);
+
+        // Each artist keeps one stroke open over several frames, so strokes from different peers
+        // are open at the same time and their frames interleave at the relay
+        int strokesEach = 400, framesPerStroke = 5, pointsPerFrame = 20;
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (Replica artist : artists) {
+            Thread thread = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int stroke = 0; stroke < strokesEach; stroke++) {
+                    artist.peer.beginStroke("Pencil", 4, 0xFF000000);
+                    for (int frame = 0, point = 0; frame < framesPerStroke; frame++) {
+                        for (int i = 0; i < pointsPerFrame; i++, point++) artist.peer.addPoint(point, stroke);
+                        if (frame == framesPerStroke - 1) artist.peer.endStroke();
+                        artist.peer.flush();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread thread : threads) thread.join();
+
+        int expected = artists.size() * strokesEach;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        while (endedStrokes(observer, strokes) < expected && System.nanoTime() < deadline) Thread.sleep(1);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        synchronized (observer) {
+            assertNull(strokes.error);
+            assertEquals(expected, strokes.ended);
+            assertTrue(strokes.mostOpen > 1, "strokes from different peers were never open together");
+        }
+        // A drawing user finishes a few strokes a second
+        double strokesPerSecond = expected / seconds;
+        assertTrue(strokesPerSecond > 300, "relayed " + strokesPerSecond + " strokes/s");
+    }
+
+    private static int endedStrokes(Replica observer, StrokeObserver strokes) {
+        synchronized (observer) {
+            return strokes.ended;
+        }
+    }
+
+    @Test
+    void concurrentTextEditsConvergeOnTheLastWriter() throws Exception {
+        long[] boxes = {first.addBox("a"), first.addBox("b"), second.addBox("c")};
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!(first.contents().size() == 3 && second.contents().size() == 3)) {
+            assertTrue(System.nanoTime() < deadline, "new boxes never reached the other peer");
+            Thread.sleep(1);
+        }
+
+        // Both peers edit every box at once; halfway, the second deletes a box the first keeps editing
+        int edits = 500;
+        CountDownLatch go = new CountDownLatch(1);
+        Thread other = new Thread(() -> {
+            try {
+                go.await();
+                for (int i = 0; i < edits; i++) {
+                    if (i == edits / 2) second.delete(boxes[2]);
+                    else second.edit(boxes[i % boxes.length], "second " + i);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        other.start();
+        go.countDown();
+        for (int i = 0; i < edits; i++) first.edit(boxes[(i + 1) % boxes.length], "first " + i);
+        other.join();
+
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!first.contents().equals(second.contents()) && System.nanoTime() < deadline) Thread.sleep(1);
+        assertEquals(first.contents(), second.contents());
+        assertTrue(first.contents().containsKey(boxes[0]));
+        assertTrue(first.contents().containsKey(boxes[1]));
+    }
+
+    @Test
+    void connectingDoesNotBlockAndReportsAFailure() throws Exception {
+        // A port nobody listens on any more
+        SessionRelay closed = new SessionRelay(0);
+        int port = closed.getPort();
+        closed.close();
+
+        Replica lonely = new Replica(port);
+        try {
+            assertNotNull(lonely.disconnected.get(10, TimeUnit.SECONDS));
+            assertFalse(lonely.connected.isDone());
+        } finally {
+            lonely.peer.close();
+        }
+        assertTrue(first.connected.isDone());
+    }
+
+    @Test
+    void peersAreToldWhenTheRelayGoesAway() throws Exception {
+        relay.close();
+        assertNotNull(first.disconnected.get(10, TimeUnit.SECONDS));
+        assertNotNull(second.disconnected.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void relayDropsAClientThatSendsGarbageAndKeepsTheOthers() throws Exception {
+        try (Socket garbage = new Socket("localhost", relay.getPort())) {
+            garbage.setSoTimeout(10_000);
+            garbage.getOutputStream().write(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F});
+            garbage.getOutputStream().flush();
+            assertEquals(-1, garbage.getInputStream().read());
+        }
+        first.addBox("still here");
+        awaitCount(second.remoteText, 1, 10);
+    }
+
+    @Test
+    void relayDropsAClientThatStopsReading() throws Exception {
+        // A one megabyte stroke frame, valid so the two peers keep decoding what they are sent
+        int pointCount = 200_000;
+        float[] points = new float[pointCount * 2];
+        for (int i = 0; i < points.length; i++) points[i] = i % 4000;
+        SessionProtocol.Encoder encoder = new SessionProtocol.Encoder();
+        encoder.writeStroke(new SessionProtocol.StrokeDelta(99, 1, "Pencil", 2, 0xFF000000, points, false));
+        ByteBuffer frame = encoder.toFrame();
+        long frames = SessionRelay.MAX_QUEUED_BYTES / frame.remaining() * 2;
+
+        // The relay accepts in order, so the stalled client is accepted before anything is read from the sender
+        try (Socket stalled = new Socket("localhost", relay.getPort());
+             Socket sender = new Socket("localhost", relay.getPort())) {
+            stalled.setSoTimeout(30_000);
+            for (long i = 0; i < frames; i++) sender.getOutputStream().write(frame.array(), 0, frame.remaining());
+            sender.getOutputStream().flush();
+            awaitCount(first.remotePoints, (int) (frames * pointCount), 30);
+
+            // The stalled client gets what was queued for it, then the relay closes its connection
+            byte[] sink = new byte[64 * 1024];
+            long received = 0;
+            int n;
+            while ((n = stalled.getInputStream().read(sink)) >= 0) received += n;
+            assertTrue(received < frames * frame.remaining(), "the stalled client was sent every frame");
+        }
+        first.addBox("still here");
+        awaitCount(second.remoteText, 1, 10);
+    }
+
+    private static void awaitCount(AtomicInteger count, int expected, int seconds) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (count.get() < expected && System.nanoTime() < deadline) Thread.sleep(1);
+        assertEquals(expected, count.get());
+    }
+}
@@ -0,0 +1,139 @@
+package org.main.paint;
+
+import org.junit.jupiter.api.Test;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Encodes deltas, decodes them again and checks nothing was lost beyond the
+ * {@link SessionProtocol#POINT_SCALE} quantization.
+ */
+class SessionProtocolTest {
+    private static final double QUANTUM = 1.0 / SessionProtocol.POINT_SCALE;
+
+    @Test
+    void strokeRoundTripsNegativeDeltasAndMultiByteVarints() {
+        // Points jump back and forth by thousands of pixels, so deltas are negative and need 3+ byte varints
+        float[] points = {10.25f, 20.5f, -3.75f, 4000f, 5000.5f, -6000.25f, 0f, 0f, 12.1f, 12.2f};
+        SessionProtocol.StrokeDelta sent = new SessionProtocol.StrokeDelta(Integer.MAX_VALUE - 1, 300, "Pencil",
+                12.5, 0x80FF2010, points, true);
+
+        SessionProtocol.StrokeDelta received = (SessionProtocol.StrokeDelta) roundTrip(sent, null).get(0);
+
+        assertEquals(sent.siteId, received.siteId);
+        assertEquals(sent.strokeId, received.strokeId);
+        assertEquals("Pencil", received.brushType);
+        assertEquals(12.5, received.size);
+        assertEquals(0x80FF2010, received.argb);
+        assertTrue(received.end);
+        assertEquals(sent.pointCount(), received.pointCount());
+        for (int i = 0; i < sent.pointCount(); i++) {
+            assertEquals(sent.x(i), received.x(i), QUANTUM / 2, "x of point " + i);
+            assertEquals(sent.y(i), received.y(i), QUANTUM / 2, "y of point " + i);
+        }
+    }
+
+    @Test
+    void textRoundTripsUtf8AndLongIds() {
+        SessionProtocol.TextDelta sent = new SessionProtocol.TextDelta((long) Integer.MAX_VALUE << 32 | 7, 1L << 40,
+                42, false, "Grüße ✏ 日本語 😀", -12.25, 300.75, 0xFF00FF00, "DejaVu Sans", 18, true, false);
+
+        SessionProtocol.TextDelta received = (SessionProtocol.TextDelta) roundTrip(null, sent).get(0);
+
+        assertEquals(sent.boxId, received.boxId);
+        assertEquals(sent.lamport, received.lamport);
+        assertEquals(42, received.siteId);
+        assertEquals("Grüße ✏ 日本語 😀", received.text);
+        assertEquals(-12.25, received.x);
+        assertEquals(300.75, received.y);
+        assertEquals(0xFF00FF00, received.argb);
+        assertEquals("DejaVu Sans", received.fontFamily);
+        assertEquals(18, received.fontSize);
+        assertTrue(received.bold);
+        assertEquals(false, received.italic);
+    }
+
+    @Test
+    void deletedTextCarriesOnlyItsVersion() {
+        SessionProtocol.TextDelta sent = new SessionProtocol.TextDelta(99, 5, 3, true, null, 0, 0, 0, null, 0,
+                false, false);
+
+        SessionProtocol.TextDelta received = (SessionProtocol.TextDelta) roundTrip(null, sent).get(0);
+
+        assertTrue(received.deleted);
+        assertEquals(99, received.boxId);
+        assertEquals(5, received.lamport);
+        assertNull(received.text);
+    }
+
+    @Test
+    void frameReaderReassemblesFramesSplitAcrossReads() {
+        // Three frames, the last one larger than the reader's initial buffer
+        List<ByteBuffer> sent = new ArrayList<>();
+        for (int pointCount : new int[] {1, 40, 6000}) {
+            float[] points = new float[pointCount * 2];
+            for (int i = 0; i < points.length; i++) points[i] = i * 3.5f;
+            SessionProtocol.Encoder encoder = new SessionProtocol.Encoder();
+            encoder.writeStroke(new SessionProtocol.StrokeDelta(1, pointCount, "Pencil", 2, 0xFF000000, points, false));
+            sent.add(encoder.toFrame());
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (ByteBuffer frame : sent) stream.write(frame.array(), 0, frame.remaining());
+        byte[] bytes = stream.toByteArray();
+
+        // Deliver the stream in uneven chunks, as short TCP reads would
+        SessionProtocol.FrameReader reader = new SessionProtocol.FrameReader();
+        List<ByteBuffer> received = new ArrayList<>();
+        int offset = 0, chunk = 1;
+        while (offset < bytes.length) {
+            ByteBuffer buffer = reader.buffer();
+            int length = Math.min(Math.min(chunk, buffer.remaining()), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+            received.addAll(reader.drainFrames());
+            chunk = chunk * 3 % 997 + 1;
+        }
+
+        assertEquals(sent.size(), received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertEquals(sent.get(i).rewind(), received.get(i), "frame " + i);
+            SessionProtocol.StrokeDelta delta = (SessionProtocol.StrokeDelta)
+                    SessionProtocol.decode(SessionProtocol.payloadOf(received.get(i))).get(0);
+            assertEquals(delta.strokeId, delta.pointCount());
+        }
+    }
+
+    @Test
+    void frameReaderRejectsLengthsBeyondTheCap() {
+        // A corrupt or hostile length prefix must not make the reader grow its buffer without bound
+        SessionProtocol.FrameReader reader = new SessionProtocol.FrameReader();
+        int length = SessionProtocol.MAX_FRAME_BYTES + 1;
+        ByteBuffer buffer = reader.buffer();
+        while ((length & ~0x7F) != 0) {
+            buffer.put((byte) ((length & 0x7F) | 0x80));
+            length >>>= 7;
+        }
+        buffer.put((byte) length);
+        assertThrows(IllegalArgumentException.class, reader::drainFrames);
+
+        SessionProtocol.FrameReader negative = new SessionProtocol.FrameReader();
+        negative.buffer().put(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F});
+        assertThrows(IllegalArgumentException.class, negative::drainFrames);
+    }
+
+    private static List<Object> roundTrip(SessionProtocol.StrokeDelta stroke, SessionProtocol.TextDelta text) {
+        SessionProtocol.Encoder encoder = new SessionProtocol.Encoder();
+        if (stroke != null) encoder.writeStroke(stroke);
+        if (text != null) encoder.writeText(text);
+        List<Object> deltas = SessionProtocol.decode(SessionProtocol.payloadOf(encoder.toFrame()));
+        assertEquals(1, deltas.size());
+        return deltas;
+    }
+}
@@ -0,0 +1,182 @@
+package org.main.paint;
+
+import javafx.application.Platform;
+import javafx.event.ActionEvent;
+import javafx.event.EventType;
+import javafx.fxml.FXMLLoader;
+import javafx.geometry.Point2D;
+import javafx.scene.Node;
+import javafx.scene.Parent;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.ColorPicker;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.Slider;
+import javafx.scene.control.TextField;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyEvent;
+import javafx.scene.input.MouseButton;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.paint.Color;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a recorded input session against a freshly loaded paint.fxml and its Controller.
+ * <p>
+ * The layout is never shown, so controls get no skins and no layout pass; the harness fires
+ * the action events their skins would. That keeps the rendered canvas independent of window
+ * layout and of native text shaping for control labels. Text drawn on the canvas still needs
+ * the platform's text shaping (on Linux, the system Pango libraries).
+ * <p>
+ * A session is a JSON object with an {@code events} array. Each event is one of
+ * {@code press/drag/release/click} (with x, y), {@code stroke} (a points array replayed as
+ * press, drags and release), {@code brush}, {@code size}, {@code color}, {@code textMode},
+ * {@code text} (typed into the text field), {@code key} (a KeyCode typed on the canvas),
+ * {@code undo}, {@code redo} and {@code clear}.
+ * <p>
+ * Events normally run one per FX turn, each after earlier stroke snapshots have landed. A
+ * {@code burst} runs its nested {@code events} in a single turn, so no pulse can take a
+ * snapshot in between; it replays input that arrives while a snapshot is still in flight.
+ * <p>
+ * Allocation is measured across all threads, including the snapshot compactor and renderer.
+ */
+class SessionReplay {
+    private static boolean started = false;
+
+    static class Result {
+        final GoldenImage image;
+        final long nanos;
+        final long allocatedBytes;
+
+        Result(GoldenImage image, long nanos, long allocatedBytes) {
+            this.image = image;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    static synchronized void startToolkit() throws InterruptedException {
+        if (started) return;
+        CountDownLatch latch = new CountDownLatch(1);
+        Platform.startup(latch::countDown);
+        latch.await(10, TimeUnit.SECONDS);
+        started = true;
+    }
+
+    // Replays the session on the FX thread and renders the canvas layers
+    static Result replay(JSONObject session) throws Exception {
+        FXMLLoader loader = new FXMLLoader(SessionReplay.class.getResource("/org/main/paint/paint.fxml"));
+        Parent root = onFx(loader::load);
+        Controller controller = loader.getController();
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getTotalThreadAllocatedBytes();
+        long start = System.nanoTime();
+        JSONArray events = session.getJSONArray("events");
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject event = events.getJSONObject(i);
+            // Like real input, each event gets its own turn so pulses (and snapshots) run in
+            // between; waiting here keeps the next event from overtaking a deferred undo
+            awaitSettled(controller);
+            onFx(() -> {
+                apply(root, event);
+                return null;
+            });
+        }
+        awaitSettled(controller);
+        long nanos = System.nanoTime() - start;
+        long allocated = threads.getTotalThreadAllocatedBytes() - allocatedBefore;
+        GoldenImage image = onFx(() -> GoldenImage.of(root.lookup("#canvasContainer").snapshot(null, null)));
+        return new Result(image, nanos, allocated);
+    }
+
+    // Waits until every stroke snapshot has been compacted into the history
+    private static void awaitSettled(Controller controller) throws Exception {
+        while (!onFx(controller::isHistorySettled)) Thread.sleep(1);
+    }
+
+    private static void apply(Parent root, JSONObject event) {
+        Canvas canvas = (Canvas) root.lookup("#canvas");
+        switch (event.getString("type")) {
+            case "press":   mouse(canvas, MouseEvent.MOUSE_PRESSED, event.getDouble("x"), event.getDouble("y")); break;
+            case "drag":    mouse(canvas, MouseEvent.MOUSE_DRAGGED, event.getDouble("x"), event.getDouble("y")); break;
+            case "release": mouse(canvas, MouseEvent.MOUSE_RELEASED, event.getDouble("x"), event.getDouble("y")); break;
+            case "click": {
+                double x = event.getDouble("x"), y = event.getDouble("y");
+                mouse(canvas, MouseEvent.MOUSE_PRESSED, x, y);
+                mouse(canvas, MouseEvent.MOUSE_RELEASED, x, y);
+                mouse(canvas, MouseEvent.MOUSE_CLICKED, x, y);
+                break;
+            }
+            case "stroke": {
+                JSONArray points = event.getJSONArray("points");
+                for (int i = 0; i < points.length(); i++) {
+                    JSONArray p = points.getJSONArray(i);
+                    mouse(canvas, i == 0 ? MouseEvent.MOUSE_PRESSED : MouseEvent.MOUSE_DRAGGED,
+                          p.getDouble(0), p.getDouble(1));
+                }
+                JSONArray last = points.getJSONArray(points.length() - 1);
+                mouse(canvas, MouseEvent.MOUSE_RELEASED, last.getDouble(0), last.getDouble(1));
+                break;
+            }
+            case "brush": {
+                ComboBox<String> brushes = lookup(root, "#brushTypeComboBox");
+                brushes.getSelectionModel().select(event.getString("value"));
+                brushes.fireEvent(new ActionEvent());
+                break;
+            }
+            case "size":     SessionReplay.<Slider>lookup(root, "#brushSizeSlider").setValue(event.getDouble("value")); break;
+            case "color": {
+                ColorPicker picker = lookup(root, "#colorPicker");
+                picker.setValue(Color.web(event.getString("value")));
+                picker.fireEvent(new ActionEvent());
+                break;
+            }
+            case "textMode": SessionReplay.<CheckBox>lookup(root, "#textModeCheckBox").setSelected(event.getBoolean("value")); break;
+            case "text":     SessionReplay.<TextField>lookup(root, "#textInput").setText(event.getString("value")); break;
+            case "key": {
+                KeyCode code = KeyCode.valueOf(event.getString("value"));
+                canvas.fireEvent(new KeyEvent(KeyEvent.KEY_PRESSED, "", "", code, false, false, false, false));
+                String character = code == KeyCode.ENTER ? "\r" : code.getChar();
+                canvas.fireEvent(new KeyEvent(KeyEvent.KEY_TYPED, character, "", KeyCode.UNDEFINED,
+                                              false, false, false, false));
+                break;
+            }
+            case "undo":     SessionReplay.<Button>lookup(root, "#undoButton").fire(); break;
+            case "redo":     SessionReplay.<Button>lookup(root, "#redoButton").fire(); break;
+            case "clear":    SessionReplay.<Button>lookup(root, "#clearButton").fire(); break;
+            case "burst": {
+                JSONArray events = event.getJSONArray("events");
+                for (int i = 0; i < events.length(); i++) apply(root, events.getJSONObject(i));
+                break;
+            }
+            default: throw new IllegalArgumentException("Unknown replay event " + event.getString("type"));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Node> T lookup(Parent root, String selector) {
+        return (T) root.lookup(selector);
+    }
+
+    // x and y are canvas coordinates; the event is built in scene coordinates like a real one
+    private static void mouse(Canvas canvas, EventType<MouseEvent> type, double x, double y) {
+        boolean down = type != MouseEvent.MOUSE_RELEASED && type != MouseEvent.MOUSE_CLICKED;
+        Point2D scene = canvas.localToScene(x, y);
+        canvas.fireEvent(new MouseEvent(type, scene.getX(), scene.getY(), scene.getX(), scene.getY(), MouseButton.PRIMARY, 1,
+                false, false, false, false, down, false, false, true, false, false, null));
+    }
+
+    static <T> T onFx(Callable<T> work) throws Exception {
+        FutureTask<T> task = new FutureTask<>(work);
+        Platform.runLater(task);
+        return task.get(60, TimeUnit.SECONDS);
+    }
+}
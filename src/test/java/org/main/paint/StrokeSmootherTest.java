@@ -0,0 +1,137 @@
+package org.main.paint;
+
+import org.junit.jupiter.api.Test;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StrokeSmootherTest {
+    private static final double TOLERANCE = 0.75;
+
+    // Records what a smoother emits; curves are kept as {x0, y0, c1x, c1y, c2x, c2y, x1, y1}
+    private static class Recorder implements StrokeSmoother.Listener {
+        final List<double[]> vertices = new ArrayList<>();
+        final List<double[]> curves = new ArrayList<>();
+        double[] tail = new double[0];
+
+        @Override
+        public void onVertex(double x, double y) {
+            vertices.add(new double[] {x, y});
+        }
+
+        @Override
+        public void onCurve(double x0, double y0, double c1x, double c1y, double c2x, double c2y, double x1, double y1) {
+            curves.add(new double[] {x0, y0, c1x, c1y, c2x, c2y, x1, y1});
+        }
+
+        @Override
+        public void onTail(double[] points, int count) {
+            tail = Arrays.copyOf(points, count * 2);
+        }
+    }
+
+    @Test
+    void arcKeepsFewVerticesWithinTolerance() {
+        // Wide enough that the segment length limit places the vertices: 942 px at 16 px per segment
+        assertArcWithinTolerance(300, 70);
+    }
+
+    @Test
+    void tightArcKeepsFewVerticesWithinTolerance() {
+        // Tight enough that the tolerance places the vertices
+        assertArcWithinTolerance(25, 20);
+    }
+
+    // Smooths a half circle of 940 samples and checks the rendered curves stay within tolerance
+    private static void assertArcWithinTolerance(double radius, int maxVertices) {
+        int samples = 940;
+        double[][] arc = new double[samples][];
+        for (int i = 0; i < samples; i++) {
+            double angle = Math.PI * i / (samples - 1);
+            arc[i] = new double[] {400 + radius * Math.cos(angle), 400 - radius * Math.sin(angle)};
+        }
+        Recorder recorder = new Recorder();
+        StrokeSmoother smoother = new StrokeSmoother(TOLERANCE, recorder);
+        smoother.begin(arc[0][0], arc[0][1]);
+        for (int i = 1; i < samples; i++) smoother.add(arc[i][0], arc[i][1]);
+        smoother.end();
+
+        int vertices = recorder.vertices.size();
+        assertTrue(vertices <= maxVertices, vertices + " vertices for " + samples + " samples");
+        assertEquals(vertices - 1, recorder.curves.size());
+        double worst = 0;
+        for (double[] sample : arc) worst = Math.max(worst, distanceToCurves(sample, recorder.curves));
+        assertTrue(worst <= TOLERANCE, "samples are up to " + worst + " px from the rendered stroke");
+        assertEquals(0, recorder.tail.length);
+    }
+
+    @Test
+    void straightRunsStillKeepAVertexEverySegment() {
+        Recorder recorder = new Recorder();
+        StrokeSmoother smoother = new StrokeSmoother(TOLERANCE, recorder);
+        smoother.begin(0, 10);
+        for (int x = 1; x <= 200; x++) smoother.add(x, 10);
+        smoother.end();
+
+        for (int i = 1; i < recorder.vertices.size(); i++) {
+            double step = recorder.vertices.get(i)[0] - recorder.vertices.get(i - 1)[0];
+            assertTrue(step <= 16, "vertex " + i + " is " + step + " px after the previous one");
+        }
+        assertArrayEquals(new double[] {200, 10}, recorder.vertices.get(recorder.vertices.size() - 1));
+    }
+
+    @Test
+    void strokeThatDoublesBackKeepsItsTurningPoint() {
+        // Out to x = 14 and back to x = 2 with a little jitter, all within one segment length
+        Recorder recorder = new Recorder();
+        StrokeSmoother smoother = new StrokeSmoother(TOLERANCE, recorder);
+        smoother.begin(0, 100);
+        for (int x = 1; x <= 14; x++) smoother.add(x, 100 + (x % 2) * 0.3);
+        for (int x = 13; x >= 2; x--) smoother.add(x, 100 + (x % 2) * 0.3);
+        smoother.end();
+
+        double furthest = 0;
+        for (double[] vertex : recorder.vertices) furthest = Math.max(furthest, vertex[0]);
+        assertTrue(furthest >= 14 - TOLERANCE, "the stroke only reaches x = " + furthest);
+        double[] turn = {14, 100};
+        assertTrue(distanceToCurves(turn, recorder.curves) <= TOLERANCE, "the turning point was cut off");
+    }
+
+    @Test
+    void tailReachesTheNewestSampleFromTheLastCurve() {
+        Recorder recorder = new Recorder();
+        StrokeSmoother smoother = new StrokeSmoother(TOLERANCE, recorder);
+        smoother.begin(0, 0);
+        for (int i = 1; i <= 100; i++) {
+            double x = i * 2, y = 40 * Math.sin(i / 8.0);
+            smoother.add(x, y);
+            double[] tail = recorder.tail;
+            assertEquals(x, tail[tail.length - 2]);
+            assertEquals(y, tail[tail.length - 1]);
+            double[] start = recorder.curves.isEmpty()
+                    ? recorder.vertices.get(0)
+                    : new double[] {recorder.curves.get(recorder.curves.size() - 1)[6],
+                                    recorder.curves.get(recorder.curves.size() - 1)[7]};
+            assertEquals(start[0], tail[0]);
+            assertEquals(start[1], tail[1]);
+        }
+    }
+
+    // Closest distance from a point to any of the cubic Bezier curves, by sampling them densely
+    private static double distanceToCurves(double[] point, List<double[]> curves) {
+        double best = Double.MAX_VALUE;
+        for (double[] c : curves) {
+            for (int step = 0; step <= 200; step++) {
+                double t = step / 200.0, u = 1 - t;
+                double x = u * u * u * c[0] + 3 * u * u * t * c[2] + 3 * u * t * t * c[4] + t * t * t * c[6];
+                double y = u * u * u * c[1] + 3 * u * u * t * c[3] + 3 * u * t * t * c[5] + t * t * t * c[7];
+                best = Math.min(best, Math.hypot(point[0] - x, point[1] - y));
+            }
+        }
+        return best;
+    }
+}